@@ -0,0 +1,47 @@
+//Reads how many heap bytes the current thread has allocated
+import java.lang.management.ManagementFactory;
+
+/**
+ * Thin wrapper around the HotSpot per-thread allocation counter, used to
+ * report how many heap bytes the datagram loops allocate per packet.
+ */
+public final class AllocationMeter {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private AllocationMeter() {
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the bytes allocated by the calling thread so far.
+     *
+     * @return The allocated byte count, or -1 if the JVM cannot tell
+     */
+    public static long threadAllocatedBytes() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * Formats an allocation delta as bytes per packet.
+     *
+     * @param bytes The bytes allocated
+     * @param packets The number of packets handled meanwhile
+     * @return A printable per-packet figure
+     */
+    public static String perPacket(long bytes, long packets) {
+        if (THREADS == null || packets == 0) {
+            return "n/a";
+        }
+        return String.format("%.1f bytes/packet", (double) bytes / packets);
+    }
+}
@@ -0,0 +1,256 @@
+//Loopback benchmark comparing RBUDP and TCP over a sweep of settings
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs sender and receiver in one JVM over loopback and sweeps file size,
+ * packet size, burst size and injected loss for RBUDP, with TCP as the
+ * baseline. TCP runs once per file size and packet size, since neither
+ * bursts nor injected loss apply to it. Every received file is compared with
+ * the original. Results are printed as a table and written to OUT.csv and
+ * OUT.json. Loss is injected through a NetworkImpairment seeded with the run
+ * number, on top of any delay, jitter or bottleneck given with --link. The
+ * rate defaults to 400 Mbit/s, since unpaced bursts overflow the loopback
+ * socket buffers and drown out the injected loss.
+ * <pre>
+ *   java -cp bin Benchmark [--sizes 1M,16M] [--packets 1000,1400,8192]
+ *        [--bursts 400,2000] [--loss 0,0.01,0.05] [--rate MBPS]
+ *        [--link SPEC] [--fec K|auto] [--pipeline DEPTH] [--repeat N] [--out FILE]
+ * </pre>
+ */
+public class Benchmark {
+    private static final long RECEIVE_TIMEOUT_SECONDS = 120;
+
+    private List<Long> sizes = parseSizes("1M,16M");
+    private List<Integer> packetSizes = parseInts("1000,1400,8192");
+    private List<Integer> burstSizes = parseInts("400,2000");
+    private List<Double> losses = parseDoubles("0,0.01,0.05");
+    private int rateMbps = 400;     // Unpaced bursts overflow loopback buffers and swamp the injected loss
+    private String link = null;     // Extra impairments, in NetworkImpairment.parse form
+    private String fec = "0";       // Parity group size for RBUDP, or auto
+    private int pipelineDepth = 4;
+    private int repeat = 3;
+    private String out = "benchmark";
+
+    private final BlockingQueue<TransferStats> received = new LinkedBlockingQueue<>();
+    private final List<String> rows = new ArrayList<>();
+    private final List<String> jsonRows = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark();
+        try {
+            benchmark.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: Benchmark [--sizes 1M,16M] [--packets 1000,1400] [--bursts 400,2000]"
+                    + " [--loss 0,0.01] [--rate MBPS] [--link SPEC] [--fec K|auto] [--pipeline DEPTH] [--repeat N] [--out FILE]");
+            System.exit(2);
+        }
+        System.exit(benchmark.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--sizes": sizes = parseSizes(value); break;
+                case "--packets": packetSizes = parseInts(value); break;
+                case "--bursts": burstSizes = parseInts(value); break;
+                case "--loss": losses = parseDoubles(value); break;
+                case "--rate": rateMbps = Integer.parseInt(value); break;
+                case "--link": NetworkImpairment.parse(value); link = value; break;
+                case "--fec": fec = value.equals("auto") ? value : String.valueOf(Integer.parseInt(value)); break;
+                case "--pipeline": pipelineDepth = Integer.parseInt(value); break;
+                case "--repeat": repeat = Integer.parseInt(value); break;
+                case "--out": out = value; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i - 1]);
+            }
+        }
+    }
+
+    private boolean run() throws Exception {
+        if (Log.getLevel().compareTo(Log.Level.WARN) < 0) {
+            Log.setLevel(Log.Level.WARN);   // Keep the table readable
+        }
+        Path workDir = Files.createTempDirectory("rbudp-bench");
+        File receiveDir = new File(workDir.toFile(), "received");
+        Receiver receiver = Transfer.receive(receiveDir, new TransferOptions().setListener(new TransferListener() {
+            @Override
+            public void onComplete(TransferStats stats) {
+                received.add(stats);
+            }
+
+            @Override
+            public void onError(String fileName, Exception error) {
+                if (error instanceof IncompleteTransferException) {
+                    received.add(((IncompleteTransferException) error).getStats());
+                }
+            }
+        }));
+        Thread.sleep(200);  // Let the receiver start listening
+
+        boolean allVerified = true;
+        System.out.println(String.format(Locale.ROOT, "%-5s %10s %6s %6s %6s %3s %9s %9s %9s %7s %8s %8s %s",
+                "proto", "bytes", "packet", "burst", "loss", "run", "ms", "Mbit/s", "datagrams", "rounds",
+                "rttP50ms", "rttP99ms", "ok"));
+        try {
+            for (long size : sizes) {
+                Path file = workDir.resolve("bench-" + size + ".bin");
+                byte[] data = new byte[(int) size];
+                new Random(size).nextBytes(data);
+                Files.write(file, data);
+                Path copy = receiveDir.toPath().resolve(file.getFileName());
+
+                for (int packetSize : packetSizes) {
+                    for (int run = 1; run <= repeat; run++) {
+                        allVerified &= measure(file, copy, 'T', packetSize, 0, 0, run);
+                    }
+                    for (int burstSize : burstSizes) {
+                        for (double loss : losses) {
+                            for (int run = 1; run <= repeat; run++) {
+                                allVerified &= measure(file, copy, 'U', packetSize, burstSize, loss, run);
+                            }
+                        }
+                    }
+                }
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(copy);
+            }
+        } finally {
+            receiver.close();
+        }
+
+        writeResults();
+        Files.deleteIfExists(receiveDir.toPath());
+        Files.deleteIfExists(workDir);
+        return allVerified;
+    }
+
+    private boolean measure(Path file, Path copy, char protocol, int packetSize, int burstSize, double loss, int run)
+            throws Exception {
+        TransferOptions options = new TransferOptions()
+                .setProtocol(protocol)
+                .setPacketSize(packetSize)
+                .setRateMbps(rateMbps)
+                .setPipelineDepth(pipelineDepth)
+                .setBurstSize(burstSize)
+                .setAdaptiveFec(fec.equals("auto"))
+                .setFecGroup(fec.equals("auto") ? 0 : Integer.parseInt(fec));
+        if (protocol == 'U' && (loss > 0 || link != null)) {
+            NetworkImpairment impairment = link != null ? NetworkImpairment.parse(link) : new NetworkImpairment();
+            if (loss > 0) {
+                impairment.setLoss(loss);
+            }
+            options.setImpairment(impairment.setSeed(run));
+        }
+        received.clear();
+        TransferStats sent;
+        try {
+            sent = Transfer.send(file, "localhost", options).get();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof IncompleteTransferException)) {
+                throw e;
+            }
+            sent = ((IncompleteTransferException) e.getCause()).getStats();
+        }
+        TransferStats got = received.poll(RECEIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        boolean verified = got != null && got.isComplete() && Files.mismatch(file, copy) == -1L;
+        Files.deleteIfExists(copy.resolveSibling(copy.getFileName() + ".partial"));
+        Files.deleteIfExists(copy.resolveSibling(copy.getFileName() + ".partial.journal"));
+
+        // The transfer is over once the receiver has the whole file
+        long elapsedNanos = got != null ? Math.max(sent.getElapsedNanos(), got.getElapsedNanos()) : sent.getElapsedNanos();
+        double mbps = elapsedNanos > 0 ? sent.getBytes() * 8e3 / elapsedNanos : 0;
+        TransferMetrics metrics = sent.getMetrics();
+        String row = String.format(Locale.ROOT, "%s,%d,%d,%d,%.4f,%d,%.3f,%.3f,%d,%d,%d,%d,%d,%.3f,%.3f,%b",
+                protocol == 'U' ? "rbudp" : "tcp", sent.getBytes(), packetSize, burstSize, loss, run,
+                elapsedNanos / 1e6, mbps, sent.getDatagrams(), metrics.getRetransmissions(), metrics.getParityDatagrams(),
+                got != null ? got.getMetrics().getRecoveredPackets() : 0, metrics.getRounds(),
+                metrics.getNackRttP50Millis(), metrics.getNackRttP99Millis(), verified);
+        rows.add(row);
+        jsonRows.add(String.format(Locale.ROOT, "{\"protocol\":\"%s\",\"bytes\":%d,\"packetSize\":%d,\"burstSize\":%d,"
+                + "\"loss\":%.4f,\"run\":%d,\"elapsedMs\":%.3f,\"mbps\":%.3f,\"verified\":%b,\"sender\":%s,\"receiver\":%s}",
+                protocol == 'U' ? "rbudp" : "tcp", sent.getBytes(), packetSize, burstSize, loss, run,
+                elapsedNanos / 1e6, mbps, verified, metrics.getJson(),
+                got != null ? got.getMetrics().getJson() : "null"));
+
+        System.out.println(String.format(Locale.ROOT, "%-5s %10d %6d %6d %6.3f %3d %9.1f %9.2f %9d %7d %8.2f %8.2f %s",
+                protocol == 'U' ? "rbudp" : "tcp", sent.getBytes(), packetSize, burstSize, loss, run,
+                elapsedNanos / 1e6, mbps, sent.getDatagrams(), metrics.getRounds(),
+                metrics.getNackRttP50Millis(), metrics.getNackRttP99Millis(), verified ? "yes" : "NO"));
+        return verified;
+    }
+
+    private void writeResults() throws IOException {
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(out + ".csv")))) {
+            csv.println("protocol,bytes,packetSize,burstSize,loss,run,elapsedMs,mbps,datagrams,retransmissions,"
+                    + "parity,recovered,rounds,nackRttP50Ms,nackRttP99Ms,verified");
+            for (String row : rows) {
+                csv.println(row);
+            }
+        }
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(out + ".json")))) {
+            json.println("[");
+            for (int i = 0; i < jsonRows.size(); i++) {
+                json.println("  " + jsonRows.get(i) + (i + 1 < jsonRows.size() ? "," : ""));
+            }
+            json.println("]");
+        }
+        System.out.println("Results written to " + out + ".csv and " + out + ".json");
+    }
+
+    private static List<Long> parseSizes(String list) {
+        List<Long> values = new ArrayList<>();
+        for (String item : list.split(",")) {
+            String size = item.trim().toUpperCase();
+            long unit = 1;
+            if (size.endsWith("K")) {
+                unit = 1L << 10;
+            } else if (size.endsWith("M")) {
+                unit = 1L << 20;
+            } else if (size.endsWith("G")) {
+                unit = 1L << 30;
+            }
+            if (unit > 1) {
+                size = size.substring(0, size.length() - 1);
+            }
+            long bytes = Long.parseLong(size) * unit;
+            if (bytes <= 0 || bytes > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("File sizes must be between 1 byte and 2 GB: " + item);
+            }
+            values.add(bytes);
+        }
+        return values;
+    }
+
+    private static List<Integer> parseInts(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String item : list.split(",")) {
+            values.add(Integer.parseInt(item.trim()));
+        }
+        return values;
+    }
+
+    private static List<Double> parseDoubles(String list) {
+        List<Double> values = new ArrayList<>();
+        for (String item : list.split(",")) {
+            values.add(Double.parseDouble(item.trim()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,55 @@
+//Pool of reusable direct buffers for datagram I/O
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed set of direct ByteBuffers shared by the datagram send and receive
+ * loops. All buffers are allocated up front, so once a transfer is running
+ * taking and returning buffers never touches the heap, and the number of
+ * buffers caps how much memory the datagram path can hold.
+ */
+public class BufferPool {
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final int bufferSize;
+
+    /**
+     * Allocates the pool.
+     *
+     * @param count The number of buffers in the pool
+     * @param bufferSize The capacity of each buffer in bytes
+     */
+    public BufferPool(int count, int bufferSize) {
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < count; i++) {
+            free.push(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer out of the pool.
+     *
+     * @return A buffer ready to be filled
+     * @throws IllegalStateException If every buffer is already in use
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            throw new IllegalStateException("Buffer pool exhausted");
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool.
+     *
+     * @param buffer A buffer previously taken with acquire()
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        free.push(buffer);
+    }
+}
@@ -0,0 +1,194 @@
+//Headless command-line entry point for sending and receiving files
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs transfers without JavaFX, for servers, scripts and cron jobs.
+ * <pre>
+ *   java -cp bin Cli send FILE|DIR HOST [options]
+ *   java -cp bin Cli receive [--dir DIR] [--readers N] [--max-sessions N] [--tcp-buffer BYTES]
+ * </pre>
+ * Send options: --tcp, --packet-size BYTES|auto, where auto fits packets to
+ * the path MTU, --rate MBPS, --adaptive,
+ * --pipeline DEPTH, --streams N, --fec K|auto, which sends one parity
+ * datagram per K packets (or lets the loss decide), --compress, which
+ * deflates packets that shrink enough, --bundle N, which packs up to N
+ * packets into one datagram, --tcp-buffer BYTES, the socket
+ * buffer of TCP transfers (also taken by receive), and --link SPEC, which
+ * sends through an emulated lossy link (see NetworkImpairment). Both commands take --log LEVEL (trace,
+ * debug, info, warn, error or off) and --metrics FILE, which appends the
+ * JSON metrics of every finished transfer to FILE, one per line. A send exits with 0 once the whole
+ * file is across, 1 if packets were lost for good and 2 on errors or bad
+ * usage. A directory is sent whole, in one RBUDP session. A receiver runs
+ * until it is killed.
+ */
+public class Cli {
+    private static final String USAGE = "Usage:\n"
+            + "  Cli send FILE|DIR HOST [--tcp] [--packet-size BYTES|auto] [--rate MBPS] [--adaptive]"
+            + " [--pipeline DEPTH] [--streams N] [--fec K|auto] [--compress] [--bundle N] [--tcp-buffer BYTES] [--link SPEC] [--log LEVEL] [--metrics FILE]\n"
+            + "  Cli receive [--dir DIR] [--readers N] [--max-sessions N] [--tcp-buffer BYTES] [--log LEVEL] [--metrics FILE]";
+
+    public static void main(String[] args) {
+        try {
+            if (args.length >= 3 && args[0].equals("send")) {
+                System.exit(send(args));
+            } else if (args.length >= 1 && args[0].equals("receive")) {
+                System.exit(receive(args));
+            }
+            System.err.println(USAGE);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+        }
+        System.exit(2);
+    }
+
+    private static int send(String[] args) {
+        Path file = Paths.get(args[1]);
+        if (!Files.isRegularFile(file) && !Files.isDirectory(file)) {
+            throw new IllegalArgumentException("Not a file or directory: " + file);
+        }
+        ConsoleListener listener = new ConsoleListener("Sent");
+        TransferOptions options = new TransferOptions().setListener(listener);
+        for (int i = 3; i < args.length; i++) {
+            switch (args[i]) {
+                case "--tcp": options.setProtocol('T'); break;
+                case "--adaptive": options.setAdaptiveRate(true); break;
+                case "--packet-size": {
+                    String size = stringArg(args, ++i);
+                    options.setPacketSize(size.equals("auto") ? 0 : intArg(args, i));
+                    break;
+                }
+                case "--bundle": options.setBundlePackets(intArg(args, ++i)); break;
+                case "--rate": options.setRateMbps(intArg(args, ++i)); break;
+                case "--pipeline": options.setPipelineDepth(intArg(args, ++i)); break;
+                case "--streams": options.setStreamCount(intArg(args, ++i)); break;
+                case "--fec": {
+                    String fec = stringArg(args, ++i);
+                    if (fec.equals("auto")) {
+                        options.setAdaptiveFec(true);
+                    } else {
+                        options.setFecGroup(intArg(args, i));
+                    }
+                    break;
+                }
+                case "--compress": options.setCompression(true); break;
+                case "--tcp-buffer": options.setTcpBufferSize(intArg(args, ++i)); break;
+                case "--link": options.setImpairment(NetworkImpairment.parse(stringArg(args, ++i))); break;
+                case "--log": Log.setLevel(Log.parseLevel(stringArg(args, ++i))); break;
+                case "--metrics": listener.metricsFile = Paths.get(stringArg(args, ++i)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        try {
+            TransferStats stats = Transfer.send(file, args[2], options).get();
+            Log.flush();
+            return stats.isComplete() ? 0 : 1;
+        } catch (ExecutionException e) {
+            // Already reported by the listener
+            return e.getCause() instanceof IncompleteTransferException ? 1 : 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 2;
+        }
+    }
+
+    private static int receive(String[] args) {
+        File directory = new File("./FILES_RECEIVED");
+        ConsoleListener listener = new ConsoleListener("Received");
+        TransferOptions options = new TransferOptions();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir": directory = new File(stringArg(args, ++i)); break;
+                case "--readers": options.setReaderCount(intArg(args, ++i)); break;
+                case "--max-sessions": options.setMaxSessions(intArg(args, ++i)); break;
+                case "--tcp-buffer": options.setTcpBufferSize(intArg(args, ++i)); break;
+                case "--log": Log.setLevel(Log.parseLevel(stringArg(args, ++i))); break;
+                case "--metrics": listener.metricsFile = Paths.get(stringArg(args, ++i)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        // Serve on this thread; run() only returns if the port cannot be opened
+        Receiver receiver = new Receiver(directory.getName(), 0, listener);
+        receiver.setReceiveDirectory(directory);
+        if (options.getReaderCount() > 0) receiver.setReaderCount(options.getReaderCount());
+        if (options.getMaxSessions() > 0) receiver.setMaxSessions(options.getMaxSessions());
+        if (options.getTcpBufferSize() > 0) receiver.setTcpBufferSize(options.getTcpBufferSize());
+        receiver.run();
+        return 2;
+    }
+
+    private static String stringArg(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+
+    private static int intArg(String[] args, int i) {
+        String value = stringArg(args, i);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number for " + args[i - 1] + ": " + value);
+        }
+    }
+
+    /**
+     * Prints one line per completed transfer and per tenth of progress.
+     * Receivers share one listener across sessions, so the last tenth is
+     * tracked per file.
+     */
+    private static class ConsoleListener implements TransferListener {
+        private final String verb;
+        private final Map<String, Integer> lastTenth = new ConcurrentHashMap<>();
+        Path metricsFile;   // JSON lines of finished transfers, if set
+
+        ConsoleListener(String verb) {
+            this.verb = verb;
+        }
+
+        @Override
+        public void onProgress(String fileName, int percent) {
+            int tenth = percent / 10;
+            if (tenth != lastTenth.getOrDefault(fileName, -1)) {
+                lastTenth.put(fileName, tenth);
+                System.err.println("[" + fileName + "] " + tenth * 10 + "%");
+            }
+        }
+
+        @Override
+        public void onComplete(TransferStats stats) {
+            lastTenth.remove(stats.getFileName());
+            System.err.println(verb + " " + stats);
+            if (metricsFile != null && stats.getMetrics() != null) {
+                appendMetrics(stats.getMetrics().getJson());
+            }
+        }
+
+        private synchronized void appendMetrics(String json) {
+            try {
+                Files.write(metricsFile, (json + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Could not write metrics to " + metricsFile + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onError(String fileName, Exception error) {
+            lastTenth.remove(fileName);
+            System.err.println("Transfer of " + fileName + " failed: " + error.getMessage());
+        }
+    }
+}
@@ -0,0 +1,376 @@
+//Binary framing for the TCP control channel between sender and receiver
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the frames exchanged over the TCP control channel.
+ * Every frame is [version:1][type:1][length:4][payload:length]. Sequence
+ * list and NACK payloads start with the id of the burst they belong to, so
+ * several bursts can be in flight at once. Sequence lists are sent either as run-length encoded ranges or as a bitmap,
+ * whichever is smaller, so a whole burst with a few losses fits in a handful
+ * of bytes instead of a serialized List of Integers. A NACK also carries
+ * the receiver's credit, the number of packets its ReassemblyWindow can
+ * still take, which the sender uses to hold back new packets.
+ * <p>
+ * RESUME, the receiver's list of packets kept from an earlier attempt, is
+ * sent as the words of its PacketBitmap instead. It can cover every packet
+ * of the file, so its size is bounded by the file the sender knows rather
+ * than by the frame limit, and it is read straight into a bitmap.
+ * <p>
+ * The transfer ends with DONE, carrying the sender's digest of the file,
+ * answered by RESULT, carrying the receiver's verdict and its own digest.
+ */
+public final class ControlProtocol {
+    public static final byte VERSION = 6;
+
+    // Frame types
+    public static final byte SEQ_LIST = 1;     // sender -> receiver: packets blasted this round
+    public static final byte NACK = 2;         // receiver -> sender: packets still missing
+    public static final byte DONE = 3;         // sender -> receiver: transfer finished, with the file digest
+    public static final byte RESUME = 4;       // receiver -> sender: packets already on disk from an earlier attempt
+    public static final byte RESULT = 5;       // receiver -> sender: whether the file arrived intact
+
+    // Result statuses
+    public static final byte OK = 0;
+    public static final byte INCOMPLETE = 1;        // Packets are still missing
+    public static final byte DIGEST_MISMATCH = 2;   // Every packet arrived but the file differs
+
+    // Sequence list encodings
+    private static final byte RANGES = 0;
+    private static final byte BITMAP = 1;
+
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_FRAME_SEQS = 1 << 24;
+
+    private ControlProtocol() {
+    }
+
+    /**
+     * A decoded control frame.
+     */
+    public static final class Frame {
+        public final byte type;
+        public final int burstId;
+        public final int[] seqs;
+        public final long digest;   // DONE and RESULT only
+        public final byte status;   // RESULT only
+        public final int credit;    // NACK only: packets the receiver can take before its window overflows
+
+        Frame(byte type, int burstId, int[] seqs) {
+            this(type, burstId, seqs, 0, OK, Integer.MAX_VALUE);
+        }
+
+        Frame(byte type, int burstId, int[] seqs, long digest, byte status) {
+            this(type, burstId, seqs, digest, status, Integer.MAX_VALUE);
+        }
+
+        Frame(byte type, int burstId, int[] seqs, long digest, byte status, int credit) {
+            this.type = type;
+            this.burstId = burstId;
+            this.seqs = seqs;
+            this.digest = digest;
+            this.status = status;
+            this.credit = credit;
+        }
+    }
+
+    /**
+     * Writes a frame carrying a list of sequence numbers.
+     *
+     * @param out The control stream
+     * @param type The frame type
+     * @param burstId The burst the sequence numbers belong to
+     * @param seqs The sequence numbers, sorted ascending without duplicates
+     * @throws IOException If the frame cannot be written
+     */
+    public static void writeSeqs(DataOutputStream out, byte type, int burstId, int[] seqs) throws IOException {
+        byte[] encoded = encodeSeqs(seqs);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeInt(4 + encoded.length);
+        out.writeInt(burstId);
+        out.write(encoded);
+        out.flush();
+    }
+
+    /**
+     * Writes the receiver's answer to a sequence list.
+     *
+     * @param out The control stream
+     * @param burstId The burst the answer is for
+     * @param missing The packets of the burst still missing, sorted ascending
+     * @param credit How many more packets the receiver's reassembly window can take
+     * @throws IOException If the frame cannot be written
+     */
+    public static void writeNack(DataOutputStream out, int burstId, int[] missing, int credit) throws IOException {
+        byte[] encoded = encodeSeqs(missing);
+        out.writeByte(VERSION);
+        out.writeByte(NACK);
+        out.writeInt(8 + encoded.length);
+        out.writeInt(burstId);
+        out.writeInt(credit);
+        out.write(encoded);
+        out.flush();
+    }
+
+    /**
+     * Writes the receiver's list of the packets it already holds.
+     *
+     * @param out The control stream
+     * @param received The packets kept from an earlier attempt
+     * @throws IOException If the frame cannot be written
+     */
+    public static void writeResume(DataOutputStream out, PacketBitmap received) throws IOException {
+        int words = received.wordCount();
+        out.writeByte(VERSION);
+        out.writeByte(RESUME);
+        out.writeInt(4 + 8 * words);
+        out.writeInt(words);
+        for (int i = 0; i < words; i++) {
+            out.writeLong(received.getWord(i));
+        }
+        out.flush();
+    }
+
+    /**
+     * Blocks until the receiver's RESUME frame arrives and marks the packets
+     * it lists. The frame has to cover exactly the packets of the transfer.
+     *
+     * @param in The control stream
+     * @param into An empty bitmap sized to the number of packets in the transfer
+     * @throws IOException If the stream fails or the frame is not a valid RESUME
+     */
+    public static void readResume(DataInputStream in, PacketBitmap into) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported control protocol version " + version);
+        }
+        byte type = in.readByte();
+        if (type != RESUME) {
+            throw new IOException("Expected the receiver's resume frame, got type " + type);
+        }
+        int words = into.wordCount();
+        int length = in.readInt();
+        int count = in.readInt();
+        if (count != words || length != 4 + 8 * words) {
+            throw new IOException("Resume frame does not match the " + into.size() + " packets of the transfer");
+        }
+        for (int i = 0; i < words; i++) {
+            into.orWord(i, in.readLong());
+        }
+        int tail = into.size() & 63;
+        if (tail != 0 && (into.getWord(words - 1) & (-1L << tail)) != 0) {
+            throw new IOException("Receiver claims to hold packets past the end of the file");
+        }
+    }
+
+    /**
+     * Writes the frame telling the receiver that the transfer is over.
+     *
+     * @param out The control stream
+     * @param digest The sender's FileDigest of the file
+     * @throws IOException If the frame cannot be written
+     */
+    public static void writeDone(DataOutputStream out, long digest) throws IOException {
+        writeFrame(out, DONE, ByteBuffer.allocate(8).putLong(digest).array());
+    }
+
+    /**
+     * Writes the receiver's answer to DONE.
+     *
+     * @param out The control stream
+     * @param status OK, INCOMPLETE or DIGEST_MISMATCH
+     * @param digest The receiver's FileDigest of what it has on disk
+     * @throws IOException If the frame cannot be written
+     */
+    public static void writeResult(DataOutputStream out, byte status, long digest) throws IOException {
+        writeFrame(out, RESULT, ByteBuffer.allocate(9).put(status).putLong(digest).array());
+    }
+
+    /**
+     * Blocks until the next frame arrives and decodes it. RESUME is read
+     * with readResume instead.
+     *
+     * @param in The control stream
+     * @return The decoded frame
+     * @throws IOException If the stream fails or the frame is malformed
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported control protocol version " + version);
+        }
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid control frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        if (type == DONE) {
+            if (length != 8) {
+                throw new IOException("Malformed done frame");
+            }
+            return new Frame(type, -1, new int[0], ByteBuffer.wrap(payload).getLong(), OK);
+        }
+        if (type == RESULT) {
+            if (length != 9) {
+                throw new IOException("Malformed result frame");
+            }
+            return new Frame(type, -1, new int[0], ByteBuffer.wrap(payload, 1, 8).getLong(), payload[0]);
+        }
+        if (type != SEQ_LIST && type != NACK) {
+            throw new IOException("Unknown control frame type " + type);
+        }
+        if (length < 4) {
+            throw new IOException("Truncated control frame");
+        }
+        int burstId = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16)
+                | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
+        if (type == NACK) {
+            if (length < 8) {
+                throw new IOException("Truncated NACK frame");
+            }
+            int credit = ByteBuffer.wrap(payload, 4, 4).getInt();
+            return new Frame(type, burstId, decodeSeqs(payload, 8), 0, OK, Math.max(0, credit));
+        }
+        return new Frame(type, burstId, decodeSeqs(payload, 4));
+    }
+
+    private static void writeFrame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    static byte[] encodeSeqs(int[] seqs) {
+        ByteArrayOutputStream rangeBytes = new ByteArrayOutputStream();
+        rangeBytes.write(RANGES);
+        int ranges = 0;
+        for (int i = 0; i < seqs.length; ) {
+            int j = i + 1;
+            while (j < seqs.length && seqs[j] == seqs[j - 1] + 1) {
+                j++;
+            }
+            ranges++;
+            i = j;
+        }
+        writeVarInt(rangeBytes, ranges);
+
+        int prevEnd = 0;
+        for (int i = 0; i < seqs.length; ) {
+            int j = i + 1;
+            while (j < seqs.length && seqs[j] == seqs[j - 1] + 1) {
+                j++;
+            }
+            writeVarInt(rangeBytes, seqs[i] - prevEnd);
+            writeVarInt(rangeBytes, j - i);
+            prevEnd = seqs[j - 1] + 1;
+            i = j;
+        }
+
+        // Scattered sequence numbers are cheaper as a bitmap over their span
+        if (seqs.length > 0) {
+            long span = (long) seqs[seqs.length - 1] - seqs[0] + 1;
+            if (span / 8 + 11 < rangeBytes.size()) {
+                return encodeBitmap(seqs, (int) span);
+            }
+        }
+        return rangeBytes.toByteArray();
+    }
+
+    private static byte[] encodeBitmap(int[] seqs, int span) {
+        int first = seqs[0];
+        byte[] bits = new byte[(span + 7) / 8];
+        for (int seq : seqs) {
+            int bit = seq - first;
+            bits[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bits.length + 11);
+        out.write(BITMAP);
+        writeVarInt(out, first);
+        writeVarInt(out, span);
+        out.write(bits, 0, bits.length);
+        return out.toByteArray();
+    }
+
+    static int[] decodeSeqs(byte[] payload, int offset) throws IOException {
+        if (payload.length <= offset) {
+            throw new IOException("Empty sequence list payload");
+        }
+        int[] pos = {offset + 1};
+        if (payload[offset] == RANGES) {
+            int ranges = readVarInt(payload, pos);
+            int[] seqs = new int[Math.min(ranges, 1024)];
+            int count = 0;
+            long next = 0;
+            for (int r = 0; r < ranges; r++) {
+                long start = next + readVarInt(payload, pos);
+                int length = readVarInt(payload, pos);
+                if (count + (long) length > MAX_FRAME_SEQS || start + length > Integer.MAX_VALUE) {
+                    throw new IOException("Sequence list too large");
+                }
+                if (count + length > seqs.length) {
+                    seqs = Arrays.copyOf(seqs, Math.max(count + length, seqs.length * 2));
+                }
+                for (int k = 0; k < length; k++) {
+                    seqs[count++] = (int) (start + k);
+                }
+                next = start + length;
+            }
+            return Arrays.copyOf(seqs, count);
+        } else if (payload[offset] == BITMAP) {
+            int first = readVarInt(payload, pos);
+            int span = readVarInt(payload, pos);
+            if ((span + 7L) / 8 != payload.length - pos[0] || (long) first + span > Integer.MAX_VALUE) {
+                throw new IOException("Malformed sequence bitmap");
+            }
+            int count = 0;
+            for (int i = pos[0]; i < payload.length; i++) {
+                count += Integer.bitCount(payload[i] & 0xFF);
+            }
+            int[] seqs = new int[count];
+            int n = 0;
+            for (int bit = 0; bit < span; bit++) {
+                if ((payload[pos[0] + (bit >>> 3)] & (1 << (bit & 7))) != 0) {
+                    seqs[n++] = first + bit;
+                }
+            }
+            return n == count ? seqs : Arrays.copyOf(seqs, n);
+        }
+        throw new IOException("Unknown sequence list encoding " + payload[offset]);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] data, int[] pos) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= data.length) {
+                throw new IOException("Truncated control frame");
+            }
+            byte b = data[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Negative value in control frame");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in control frame");
+    }
+}
@@ -0,0 +1,125 @@
+//Layout of the UDP datagrams exchanged by sender and receiver
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Layout of RBUDP datagrams.
+ * A data datagram is [seq:4][crc:4][payload]. A negative sequence number
+ * marks a control datagram: END_OF_BURST is followed by the id of the burst
+ * the sender has just finished blasting, so the receiver can answer without
+ * sitting out a fixed listen window. PARITY starts a forward error
+ * correction datagram, laid out as described in XorParity. COMPRESSED
+ * starts a data packet whose payload is deflated, as
+ * [COMPRESSED][crc:4][seq:4][deflated payload]; see PacketCompressor.
+ * BUNDLE packs several data datagrams into one, as
+ * [BUNDLE][crc:4][count:4] followed by [length:4][datagram] per packet, so
+ * one system call carries many packets. PROBE datagrams only appear while
+ * PathMtu measures the path before a transfer.
+ * <p>
+ * Every datagram carries a CRC32C of everything but the checksum field
+ * itself, and one that fails the check is dropped like a lost one. The
+ * checksum of a data datagram also feeds the whole-file FileDigest.
+ */
+public final class DatagramFormat {
+    public static final int HEADER_SIZE = 8;        // Bytes in front of every payload
+    public static final int CHECKSUM_OFFSET = 4;    // Where the CRC32C sits
+    public static final int END_OF_BURST = -1;      // Seq of an end-of-burst marker
+    public static final int MARKER_SIZE = 12;       // [END_OF_BURST][crc][burstId]
+    public static final int PARITY = -2;            // Seq of a parity datagram
+    public static final int COMPRESSED = -3;        // Seq of a compressed data datagram
+    public static final int COMPRESSED_HEADER_SIZE = 12;    // [COMPRESSED][crc][seq]
+    public static final int PROBE = -4;             // Seq of a path MTU probe
+    public static final int BUNDLE = -5;            // Seq of a datagram carrying several packets
+    public static final int BUNDLE_HEADER_SIZE = 12;        // [BUNDLE][crc][count]
+    public static final int MAX_DATAGRAM = 65507;   // Largest UDP payload over IPv4
+
+    private DatagramFormat() {
+    }
+
+    /**
+     * Returns the size of a bundle that holds the given number of full packets.
+     *
+     * @param packets The number of packets in the bundle
+     * @param packetSize The number of payload bytes per packet
+     * @return The bundle datagram's size in bytes
+     */
+    public static int bundleSize(int packets, int packetSize) {
+        return BUNDLE_HEADER_SIZE + packets * (4 + HEADER_SIZE + packetSize);
+    }
+
+    /**
+     * Returns how many full packets fit one bundle.
+     *
+     * @param packetSize The number of payload bytes per packet
+     * @return The most packets per bundle
+     */
+    public static int maxBundlePackets(int packetSize) {
+        return (MAX_DATAGRAM - BUNDLE_HEADER_SIZE) / (4 + HEADER_SIZE + packetSize);
+    }
+
+    /**
+     * Computes the checksum of a datagram from its start to its limit,
+     * skipping the checksum field. The buffer's position is left alone.
+     *
+     * @param crc A checksum instance owned by the calling thread
+     * @param datagram The whole datagram, starting at index 0
+     * @return The CRC32C
+     */
+    public static int checksum(CRC32C crc, ByteBuffer datagram) {
+        int position = datagram.position();
+        int limit = datagram.limit();
+        crc.reset();
+        datagram.position(0).limit(CHECKSUM_OFFSET);
+        crc.update(datagram);
+        datagram.limit(limit).position(HEADER_SIZE);
+        crc.update(datagram);
+        datagram.position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Computes the checksum a data datagram for a packet would carry, from
+     * the packet's payload alone. Used for packets the receiver rebuilt or
+     * read back from disk rather than took off the wire.
+     *
+     * @param crc A checksum instance owned by the calling thread
+     * @param seq The sequence number of the packet
+     * @param payload The payload, from its position to its limit; the position is left alone
+     * @return The CRC32C
+     */
+    public static int checksum(CRC32C crc, int seq, ByteBuffer payload) {
+        int position = payload.position();
+        crc.reset();
+        crc.update(seq >>> 24);
+        crc.update(seq >>> 16);
+        crc.update(seq >>> 8);
+        crc.update(seq);
+        crc.update(payload);
+        payload.position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the checksum into a fully built datagram.
+     *
+     * @param crc A checksum instance owned by the calling thread
+     * @param datagram The whole datagram, starting at index 0
+     * @return The checksum written
+     */
+    public static int seal(CRC32C crc, ByteBuffer datagram) {
+        int checksum = checksum(crc, datagram);
+        datagram.putInt(CHECKSUM_OFFSET, checksum);
+        return checksum;
+    }
+
+    /**
+     * Checks a received datagram against its checksum.
+     *
+     * @param crc A checksum instance owned by the calling thread
+     * @param datagram The whole datagram, starting at index 0
+     * @return True if the datagram is intact
+     */
+    public static boolean verify(CRC32C crc, ByteBuffer datagram) {
+        return datagram.remaining() >= HEADER_SIZE && checksum(crc, datagram) == datagram.getInt(CHECKSUM_OFFSET);
+    }
+}
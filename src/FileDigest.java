@@ -0,0 +1,155 @@
+//Whole-file digest built from per-packet checksums while the file streams past
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Digest of a whole file, computed by both ends while the transfer runs so
+ * the file is never read a second time to check it.
+ * <p>
+ * The digest is a sum of the packets' CRC32Cs, each mixed with its sequence
+ * number, so packets can be added in any order and from any thread, and a
+ * packet counts once however often it is sent or received. The sender
+ * uses the CRC32Cs its datagram headers carry. The receiver does not trust
+ * the wire: it checksums each packet again from the bytes it hands to the
+ * PacketWriter, once they are written, so a packet corrupted in the
+ * reassembly window, put in the wrong slot, rebuilt wrongly from parity or
+ * inflated wrongly changes the digest. Packets kept from an earlier attempt
+ * are read back from disk. For the TCP path the byte stream is cut into
+ * CHUNK_SIZE chunks that are checksummed the same way as they go by.
+ * <p>
+ * This is an end-to-end check of what was written, not a cryptographic hash.
+ */
+public class FileDigest {
+    public static final int CHUNK_SIZE = 64 * 1024;   // Bytes per chunk on the TCP path
+
+    private final PacketBitmap included;
+    private final LongAdder sum = new LongAdder();
+
+    // Streaming state for the TCP path, only touched by one thread
+    private CRC32C chunkCrc;
+    private int chunkIndex = 0;
+    private int chunkFill = 0;
+
+    /**
+     * Creates an empty digest over a fixed number of packets.
+     *
+     * @param totalPackets The number of packets in the file
+     */
+    public FileDigest(int totalPackets) {
+        this.included = new PacketBitmap(totalPackets);
+    }
+
+    /**
+     * Creates an empty digest for a file that is fed in as a byte stream.
+     *
+     * @param fileSize The size of the file
+     * @return The digest, to be fed with update and closed with finish
+     */
+    public static FileDigest forStream(long fileSize) {
+        FileDigest digest = new FileDigest((int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        digest.chunkCrc = new CRC32C();
+        return digest;
+    }
+
+    /**
+     * Adds a packet's checksum, unless the packet was added before.
+     *
+     * @param seq The sequence number of the packet
+     * @param crc The CRC32C of the packet, as computed by DatagramFormat
+     */
+    public void add(int seq, int crc) {
+        if (included.set(seq)) {
+            sum.add(mix(((long) seq << 32) | (crc & 0xFFFFFFFFL)));
+        }
+    }
+
+    /**
+     * Feeds the next bytes of a streamed file.
+     *
+     * @param data The bytes
+     * @param offset Where they start
+     * @param length How many there are
+     */
+    public void update(byte[] data, int offset, int length) {
+        while (length > 0) {
+            if (chunkFill == 0) {
+                startChunk();
+            }
+            int take = Math.min(length, CHUNK_SIZE - chunkFill);
+            chunkCrc.update(data, offset, take);
+            chunkFill += take;
+            offset += take;
+            length -= take;
+            if (chunkFill == CHUNK_SIZE) {
+                add(chunkIndex++, (int) chunkCrc.getValue());
+                chunkFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Feeds the next bytes of a streamed file, such as a mapped region of it.
+     *
+     * @param data The bytes from its position to its limit; consumed
+     */
+    public void update(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            if (chunkFill == 0) {
+                startChunk();
+            }
+            int take = Math.min(data.remaining(), CHUNK_SIZE - chunkFill);
+            int limit = data.limit();
+            data.limit(data.position() + take);
+            chunkCrc.update(data);
+            data.limit(limit);
+            chunkFill += take;
+            if (chunkFill == CHUNK_SIZE) {
+                add(chunkIndex++, (int) chunkCrc.getValue());
+                chunkFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Adds the last, partly filled chunk of a streamed file.
+     */
+    public void finish() {
+        if (chunkFill > 0) {
+            add(chunkIndex++, (int) chunkCrc.getValue());
+            chunkFill = 0;
+        }
+    }
+
+    /**
+     * Checks whether every packet of the file has been added.
+     *
+     * @return True if the digest covers the whole file
+     */
+    public boolean isComplete() {
+        return included.nextClearBit(0, included.size()) >= included.size();
+    }
+
+    public long getValue() {
+        return sum.sum();
+    }
+
+    private void startChunk() {
+        // Same layout as a data datagram's checksum: the sequence number, then the bytes
+        chunkCrc.reset();
+        chunkCrc.update(chunkIndex >>> 24);
+        chunkCrc.update(chunkIndex >>> 16);
+        chunkCrc.update(chunkIndex >>> 8);
+        chunkCrc.update(chunkIndex);
+    }
+
+    /**
+     * The splitmix64 finalizer, so packets whose checksums differ in a
+     * few bits still land far apart in the sum.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
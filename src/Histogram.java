@@ -0,0 +1,98 @@
+//Fixed-memory histogram for latencies and other non-negative values
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the style of HdrHistogram.
+ * Values are counted in buckets that split every power of two into 32 equal
+ * steps, so any value from 0 to Long.MAX_VALUE is recorded with a relative
+ * error under about 3% in a fixed 15 KB array. Recording is lock-free and
+ * allocation-free, so it can be done from the packet path of several threads.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Counts one value.
+     *
+     * @param value The value to record; negative values are counted as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(index(Math.max(0, value)));
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value below which the given share of recorded values fall.
+     *
+     * @param percentile The percentile, 0 to 100
+     * @return An estimate of the value at that percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return midpoint(i);
+            }
+        }
+        return midpoint(BUCKETS - 1);
+    }
+
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return midpoint(i);
+            }
+        }
+        return 0;
+    }
+
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            total += count;
+            sum += (double) count * midpoint(i);
+        }
+        return total > 0 ? sum / total : 0;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+
+    private static long midpoint(int index) {
+        long low = lowerBound(index);
+        long high = index + 1 < BUCKETS ? lowerBound(index + 1) : Long.MAX_VALUE;
+        return low + (high - low - 1) / 2;
+    }
+}
@@ -0,0 +1,22 @@
+//Thrown when a transfer ends with packets that never made it across
+import java.io.IOException;
+
+/**
+ * Signals that a transfer ran to its end but could not deliver every packet,
+ * because some were still lost after the last retry. The statistics of the
+ * transfer are kept so callers can report how much was missing.
+ */
+public class IncompleteTransferException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient TransferStats stats;
+
+    public IncompleteTransferException(String message, TransferStats stats) {
+        super(message);
+        this.stats = stats;
+    }
+
+    public TransferStats getStats() {
+        return stats;
+    }
+}
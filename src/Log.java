@@ -0,0 +1,234 @@
+//Leveled, asynchronous logging for the transfer engine
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal leveled logger.
+ * Messages are queued and written to the console by one background thread, so
+ * a transfer thread never waits on console I/O; when the queue is full,
+ * messages are dropped and counted rather than blocking the caller.
+ * <p>
+ * The level comes from the rbudp.log system property (trace, debug, info,
+ * warn, error or off) and defaults to info. Per-packet messages are logged
+ * at trace level, and only for one in every rbudp.log.sample sequence numbers
+ * (100 by default). Hot-path callers check {@link #tracePacket(int)} before
+ * building the message, so nothing is allocated while tracing is off.
+ */
+public final class Log {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int QUEUE_CAPACITY = 16384;
+
+    private static volatile Level level = levelProperty();
+    private static volatile int packetSample = Math.max(1, Integer.getInteger("rbudp.log.sample", 100));
+
+    private static final BlockingQueue<Object> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final AtomicLong QUEUED = new AtomicLong();
+    private static final AtomicLong WRITTEN = new AtomicLong();
+
+    static {
+        startWriter();
+    }
+
+    /**
+     * A status line that overwrites the previous one instead of starting a new line.
+     */
+    private static final class Status {
+        final String text;
+
+        Status(String text) {
+            this.text = text;
+        }
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets how many sequence numbers share one per-packet trace message.
+     *
+     * @param sample 1 traces every packet, n traces one packet in n
+     */
+    public static void setPacketSample(int sample) {
+        packetSample = Math.max(1, sample);
+    }
+
+    /**
+     * Parses a level name as given on the command line or in rbudp.log.
+     *
+     * @param name The level name, in any case
+     * @return The level
+     * @throws IllegalArgumentException If the name is not a level
+     */
+    public static Level parseLevel(String name) {
+        return Level.valueOf(name.trim().toUpperCase());
+    }
+
+    private static Level levelProperty() {
+        try {
+            return parseLevel(System.getProperty("rbudp.log", "info"));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * Tells a per-packet call site whether this packet should be traced.
+     *
+     * @param seq The sequence number of the packet
+     * @return True if tracing is on and the packet falls in the sample
+     */
+    public static boolean tracePacket(int seq) {
+        return level == Level.TRACE && seq % packetSample == 0;
+    }
+
+    public static void trace(String message) {
+        log(Level.TRACE, message);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Logs a failure at warn level. The stack trace follows at debug level
+     * only, so a failing transfer does not flood the console.
+     *
+     * @param message What failed
+     * @param cause The exception behind it
+     */
+    public static void warn(String message, Throwable cause) {
+        log(Level.WARN, message, cause);
+    }
+
+    /**
+     * Logs a failure at error level, with the stack trace at debug level.
+     *
+     * @param message What failed
+     * @param cause The exception behind it
+     */
+    public static void error(String message, Throwable cause) {
+        log(Level.ERROR, message, cause);
+    }
+
+    /**
+     * Logs a status line at info level, such as a progress bar, that replaces
+     * the previous status line on a terminal.
+     *
+     * @param text The status text
+     */
+    public static void status(String text) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(new Status(text));
+        }
+    }
+
+    /**
+     * Waits until every message queued so far has been written.
+     */
+    public static void flush() {
+        long target = QUEUED.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (WRITTEN.get() < target && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        System.out.flush();
+    }
+
+    private static void log(Level messageLevel, String message) {
+        if (isEnabled(messageLevel)) {
+            enqueue(messageLevel == Level.INFO ? message : messageLevel + " " + message);
+        }
+    }
+
+    private static void log(Level messageLevel, String message, Throwable cause) {
+        if (isEnabled(messageLevel)) {
+            log(messageLevel, message + ": " + cause);
+            if (isEnabled(Level.DEBUG)) {
+                StringWriter trace = new StringWriter();
+                cause.printStackTrace(new PrintWriter(trace));
+                enqueue(Level.DEBUG + " " + trace.toString().stripTrailing());
+            }
+        }
+    }
+
+    private static void enqueue(Object entry) {
+        if (QUEUE.offer(entry)) {
+            QUEUED.incrementAndGet();
+        } else {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    private static void startWriter() {
+        Thread writer = new Thread(Log::drain, "rbudp-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "rbudp-log-flush"));
+    }
+
+    private static void drain() {
+        PrintStream out = System.out;
+        List<Object> batch = new ArrayList<>();
+        boolean onStatusLine = false;
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            QUEUE.drainTo(batch);
+            for (Object entry : batch) {
+                if (entry instanceof Status) {
+                    out.print("\r" + ((Status) entry).text);
+                    onStatusLine = true;
+                } else {
+                    if (onStatusLine) {
+                        out.println();
+                        onStatusLine = false;
+                    }
+                    out.println(entry);
+                }
+            }
+            long dropped = DROPPED.getAndSet(0);
+            if (dropped > 0) {
+                out.println("WARN " + dropped + " log messages dropped");
+            }
+            out.flush();
+            WRITTEN.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+}
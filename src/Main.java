@@ -5,6 +5,7 @@
  */
 
  import java.io.File;
+ import java.io.IOException;
  import java.util.Optional;
  
  import javafx.application.Application;
@@ -20,10 +21,12 @@
  import javafx.stage.FileChooser;
  import javafx.stage.Stage;
  
- public class Main extends Application{
+ public class Main extends Application implements TransferListener{
      private String userinfo[] = new String[2];
      private String username = "Enter username";
      private Integer packetSize = 1000;
+     private Integer rateMbps = 0;
+     private boolean adaptiveRate = false;
      private String myIp = "localhost";
      private String filePath = "";
      private String receiverIP = "";
@@ -169,6 +172,27 @@
  
          HBox packetSizeBox = new HBox(packetSizeLabel, packetSizeField);
          packetSizeBox.setStyle("-fx-background-color: rgb(45, 45, 45)");
+
+         // Input area for the RBUDP blast rate, 0 means unlimited
+         Label rateLabel = new Label("Rate (Mbps):");
+         rateLabel.setPrefHeight(50);
+         rateLabel.setPrefWidth(100);
+         rateLabel.setStyle("-fx-font-size: 15; -fx-text-fill: white; -fx-font-weight: bold");
+
+         TextField rateField = new TextField("0");
+         rateField.setPrefHeight(50);
+         rateField.setPrefWidth(80);
+         rateField.setOnAction(e -> changeRate(rateField, chooseArea));
+         rateField.setStyle("-fx-control-inner-background: rgb(69, 69, 69); -fx-font-size: 14; -fx-text-fill: white");
+
+         CheckBox adaptiveBox = new CheckBox("Adaptive");
+         adaptiveBox.setPrefHeight(50);
+         adaptiveBox.setPadding(new Insets(0, 0, 0, 10));
+         adaptiveBox.setStyle("-fx-text-fill: white");
+         adaptiveBox.setOnAction(e -> changeAdaptiveRate(adaptiveBox, chooseArea));
+
+         HBox rateBox = new HBox(rateLabel, rateField, adaptiveBox);
+         rateBox.setStyle("-fx-background-color: rgb(45, 45, 45)");
          
          
          // Options for file transfer
@@ -206,7 +230,7 @@
          )));
          protocolBox.setStyle("-fx-background-color: rgb(45, 45, 45); -fx-font-size: 14");
  
-         HBox optionsBox = new HBox(packetSizeBox, protocolBox);
+         HBox optionsBox = new HBox(packetSizeBox, rateBox, protocolBox);
          optionsBox.setSpacing(10);
  
  
@@ -326,13 +350,19 @@
          // Create the sender
  
          if (chosenFile != null) {
-             Sender sender = new Sender(receiverIP, chosenFile, packetSize);
+             Sender sender = new Sender(receiverIP, chosenFile, packetSize, rateMbps);
+             sender.setAdaptiveRate(adaptiveRate);
              Thread thread2 = new Thread(() -> {
                  // Choose between UDP or TCP from the togglegroup
-                 if (protocolGroup.getSelectedToggle().getUserData().equals("RBUDP")) {
-                     sender.sendFileUDP();
-                 } else {
-                     sender.sendFileTCP();
+                 try {
+                     if (protocolGroup.getSelectedToggle().getUserData().equals("RBUDP")) {
+                         sender.sendFileUDP();
+                     } else {
+                         sender.sendFileTCP();
+                     }
+                 } catch (IOException e) {
+                     System.out.println("Current port or IP unavaible, please try again");
+                     System.exit(0);
                  }
              });
              thread2.start();
@@ -393,8 +423,20 @@
      }
      
     private void changePacketSize(TextField packetSizeField, TextArea chooseArea) {
-        packetSize = Integer.parseInt(packetSizeField.getText());
-        chooseArea.appendText("New Packet Size: " + packetSize + "\n");
+        // "auto" (or 0) lets the sender fit packets to the path MTU
+        String text = packetSizeField.getText().trim();
+        packetSize = text.equalsIgnoreCase("auto") ? 0 : Integer.parseInt(text);
+        chooseArea.appendText("New Packet Size: " + (packetSize <= 0 ? "fitted to the path MTU" : packetSize) + "\n");
+    }
+ 
+    private void changeRate(TextField rateField, TextArea chooseArea) {
+        rateMbps = Integer.parseInt(rateField.getText());
+        chooseArea.appendText("New Rate: " + (rateMbps == 0 ? "unlimited" : rateMbps + " Mbps") + "\n");
+    }
+ 
+    private void changeAdaptiveRate(CheckBox adaptiveBox, TextArea chooseArea) {
+        adaptiveRate = adaptiveBox.isSelected();
+        chooseArea.appendText("Adaptive rate " + (adaptiveRate ? "enabled" : "disabled") + "\n");
     }
  
     private void changeReceiverIP(TextField receiverIPField, TextArea chooseArea) {
@@ -402,6 +444,11 @@
         chooseArea.appendText("Set Receiver IP to: " + receiverIP + "\n");
     }
 
+    @Override
+    public void onProgress(String fileName, int percent) {
+        updateProgressBar(percent, percent != 100);
+    }
+
     public void updateProgressBar(int percent, boolean isSending) {
         Platform.runLater(() -> {
             if (isSending) {
@@ -0,0 +1,233 @@
+//List of files sent together in one transfer, and their place in the packet sequence
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The files of a transfer, laid end to end in one sequence space.
+ * Each file starts on a packet boundary, so a packet never spans two files
+ * and sequence number seq belongs to the last file whose first packet is at
+ * or before seq. Small files then share bursts like the packets of one large
+ * file, while each keeps its own short last packet.
+ * <p>
+ * Paths are relative, use '/' as separator and are checked when a manifest
+ * is read, so a sender cannot place files outside the receive directory.
+ * A single file is a manifest with one entry.
+ */
+public class Manifest {
+    private static final int MAX_ENTRIES = 1 << 20;
+    private static final int MAX_DEPTH = 64;    // Deepest directory nesting scanned
+
+    private final String[] paths;
+    private final long[] sizes;
+    private final int[] firstSeqs;
+    private final int packetSize;
+    private final int totalPackets;
+    private final long totalBytes;
+
+    /**
+     * Lays out the given files in sequence space.
+     *
+     * @param paths The relative path of every file
+     * @param sizes The size of every file
+     * @param packetSize The number of payload bytes per packet
+     * @throws IOException If the files need more packets than a sequence number can count
+     */
+    public Manifest(String[] paths, long[] sizes, int packetSize) throws IOException {
+        if (packetSize <= 0) {
+            throw new IllegalArgumentException("Packet size must be positive: " + packetSize);
+        }
+        this.paths = paths;
+        this.sizes = sizes;
+        this.packetSize = packetSize;
+        this.firstSeqs = new int[paths.length];
+        long seq = 0;
+        long bytes = 0;
+        for (int i = 0; i < paths.length; i++) {
+            firstSeqs[i] = (int) seq;
+            seq += (sizes[i] + packetSize - 1) / packetSize;
+            bytes += sizes[i];
+            if (seq > Integer.MAX_VALUE) {
+                throw new IOException("Files too large for a packet size of " + packetSize + " bytes");
+            }
+        }
+        this.totalPackets = (int) seq;
+        this.totalBytes = bytes;
+    }
+
+    /**
+     * Lists a file, or every regular file below a directory, in a stable
+     * order. Paths start with the name of the file or directory itself.
+     *
+     * @param root The file or directory to send
+     * @param packetSize The number of payload bytes per packet
+     * @return The manifest
+     * @throws IOException If the directory cannot be listed
+     */
+    public static Manifest scan(File root, int packetSize) throws IOException {
+        List<String> paths = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        scan(root, root.getName(), paths, sizes, 0);
+        long[] sizeArray = new long[sizes.size()];
+        for (int i = 0; i < sizeArray.length; i++) {
+            sizeArray[i] = sizes.get(i);
+        }
+        return new Manifest(paths.toArray(new String[0]), sizeArray, packetSize);
+    }
+
+    private static void scan(File file, String path, List<String> paths, List<Long> sizes, int depth) throws IOException {
+        if (file.isFile()) {
+            if (paths.size() >= MAX_ENTRIES) {
+                throw new IOException("More than " + MAX_ENTRIES + " files to send");
+            }
+            paths.add(path);
+            sizes.add(file.length());
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children == null || depth >= MAX_DEPTH) {
+            throw new IOException("Cannot list " + file);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            if (!Files.isSymbolicLink(child.toPath())) {
+                scan(child, path + "/" + child.getName(), paths, sizes, depth + 1);
+            }
+        }
+    }
+
+    public int size() {
+        return paths.length;
+    }
+
+    public String getPath(int entry) {
+        return paths[entry];
+    }
+
+    public long getSize(int entry) {
+        return sizes[entry];
+    }
+
+    public int getFirstSeq(int entry) {
+        return firstSeqs[entry];
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public int getTotalPackets() {
+        return totalPackets;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Finds the file a packet belongs to. Files without packets are skipped.
+     *
+     * @param seq The sequence number of the packet
+     * @return The index of the entry
+     */
+    public int entryOf(int seq) {
+        int index = Arrays.binarySearch(firstSeqs, seq);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Empty files share their first seq with the next file; the last of them owns the packet
+        while (index + 1 < firstSeqs.length && firstSeqs[index + 1] == seq) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns where in its file a packet starts.
+     *
+     * @param entry The entry the packet belongs to, from entryOf
+     * @param seq The sequence number of the packet
+     * @return The byte offset in the entry's file
+     */
+    public long offsetOf(int entry, int seq) {
+        return (long) (seq - firstSeqs[entry]) * packetSize;
+    }
+
+    /**
+     * Returns the payload length of a packet; only the last packet of each
+     * file can be short.
+     *
+     * @param seq The sequence number of the packet
+     * @return The number of payload bytes in the packet
+     */
+    public int payloadLength(int seq) {
+        int entry = entryOf(seq);
+        return (int) Math.min(packetSize, sizes[entry] - offsetOf(entry, seq));
+    }
+
+    /**
+     * Writes the entries to the control stream; the packet size is sent separately.
+     *
+     * @param out The control stream
+     * @throws IOException If the stream fails
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            out.writeUTF(paths[i]);
+            out.writeLong(sizes[i]);
+        }
+    }
+
+    /**
+     * Reads and checks the entries a sender wrote. Every entry has to lie
+     * under the root directory the transfer is named after, so the claim the
+     * receiver holds on that name covers every file it writes.
+     *
+     * @param in The control stream
+     * @param packetSize The packet size the sender announced
+     * @param root The name of the directory being sent
+     * @return The manifest
+     * @throws IOException If the stream fails or an entry is not acceptable
+     */
+    public static Manifest read(DataInputStream in, int packetSize, String root) throws IOException {
+        int count = in.readInt();
+        if (count < 1 || count > MAX_ENTRIES) {
+            throw new IOException("Manifest of " + count + " files");
+        }
+        String[] paths = new String[count];
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = checkPath(in.readUTF());
+            if (!paths[i].startsWith(root + "/")) {
+                throw new IOException("Manifest entry " + paths[i] + " is not under " + root);
+            }
+            sizes[i] = in.readLong();
+            if (sizes[i] < 0) {
+                throw new IOException("Negative size for " + paths[i]);
+            }
+        }
+        return new Manifest(paths, sizes, packetSize);
+    }
+
+    /**
+     * Accepts only plain relative paths, so an entry always lands inside
+     * the receive directory.
+     */
+    private static String checkPath(String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf(':') >= 0) {
+            throw new IOException("Unsafe path in manifest: " + path);
+        }
+        for (String part : path.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IOException("Unsafe path in manifest: " + path);
+            }
+        }
+        return path;
+    }
+}
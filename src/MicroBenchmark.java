@@ -0,0 +1,147 @@
+//Micro benchmarks of the per-packet and per-round hot paths
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * Times the code that runs once per packet or once per round: encoding and
+ * decoding sequence lists, building and checksumming a datagram from the
+ * mapped file and working out the missing set of a burst. Each case is
+ * warmed up first so the JIT has compiled it, then timed over several
+ * measurement rounds; the best and median ns/op are printed.
+ * <pre>
+ *   java -cp bin MicroBenchmark [rounds]
+ * </pre>
+ */
+public class MicroBenchmark {
+    private static final int WARMUP_NANOS = 500_000_000;
+    private static final int ROUND_NANOS = 200_000_000;
+    private static final int BURST = 2000;
+    private static final int PACKET_SIZE = 1400;
+
+    private static volatile long sink; // Keeps results alive so the JIT cannot drop the work
+
+    private interface Case {
+        long run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        int[] contiguous = new int[BURST];
+        for (int i = 0; i < BURST; i++) {
+            contiguous[i] = 10_000 + i;
+        }
+        int[] scattered = sample(BURST, 0.3, new Random(1));   // Heavy loss, many short gaps
+        int[] sparse = sample(BURST, 0.01, new Random(2));     // Light loss, a few lone packets
+        byte[] contiguousFrame = ControlProtocol.encodeSeqs(contiguous);
+        byte[] scatteredFrame = ControlProtocol.encodeSeqs(scattered);
+        byte[] sparseFrame = ControlProtocol.encodeSeqs(sparse);
+
+        PacketBitmap received = new PacketBitmap(BURST);
+        Random random = new Random(3);
+        for (int seq = 0; seq < BURST; seq++) {
+            if (random.nextDouble() >= 0.05) {
+                received.set(seq);
+            }
+        }
+        int[] burst = new int[BURST];
+        for (int i = 0; i < BURST; i++) {
+            burst[i] = i;
+        }
+
+        File file = File.createTempFile("rbudp-micro", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[PACKET_SIZE * BURST];
+        new Random(4).nextBytes(data);
+        Files.write(file.toPath(), data);
+        ByteBuffer datagram = ByteBuffer.allocateDirect(DatagramFormat.HEADER_SIZE + PACKET_SIZE);
+        CRC32C crc = new CRC32C();
+
+        System.out.println(String.format(Locale.ROOT, "%-32s %12s %12s", "case", "best ns/op", "median ns/op"));
+        try (PacketSource source = new PacketSource(file, PACKET_SIZE)) {
+            measure("encode contiguous burst", rounds, () -> ControlProtocol.encodeSeqs(contiguous).length);
+            measure("encode 30% scattered", rounds, () -> ControlProtocol.encodeSeqs(scattered).length);
+            measure("encode 1% sparse", rounds, () -> ControlProtocol.encodeSeqs(sparse).length);
+            measure("decode contiguous burst", rounds, () -> ControlProtocol.decodeSeqs(contiguousFrame, 0).length);
+            measure("decode 30% scattered", rounds, () -> ControlProtocol.decodeSeqs(scatteredFrame, 0).length);
+            measure("decode 1% sparse", rounds, () -> ControlProtocol.decodeSeqs(sparseFrame, 0).length);
+            measure("missing set, per-seq lookup", rounds, () -> {
+                int count = 0;
+                for (int seq : burst) {
+                    if (!received.get(seq)) {
+                        count++;
+                    }
+                }
+                return count;
+            });
+            measure("missing set, nextClearBit", rounds, () -> {
+                int count = 0;
+                for (int seq = received.nextClearBit(0, BURST); seq < BURST; seq = received.nextClearBit(seq + 1, BURST)) {
+                    count++;
+                }
+                return count;
+            });
+            int[] next = {0};
+            measure("build one datagram", rounds, () -> {
+                int seq = next[0]++ % BURST;
+                datagram.clear();
+                datagram.putInt(seq).putInt(0);
+                source.copyPacket(seq, datagram);
+                datagram.flip();
+                return datagram.get(DatagramFormat.HEADER_SIZE);
+            });
+            measure("checksum one datagram", rounds, () -> DatagramFormat.seal(crc, datagram));
+        }
+    }
+
+    private static int[] sample(int span, double share, Random random) {
+        int[] seqs = new int[span];
+        int count = 0;
+        for (int seq = 0; seq < span; seq++) {
+            if (random.nextDouble() < share) {
+                seqs[count++] = seq;
+            }
+        }
+        return java.util.Arrays.copyOf(seqs, count);
+    }
+
+    /**
+     * Runs a case until the warmup time is up, then times it over a number of
+     * fixed-length rounds and prints the best and median cost of one call.
+     */
+    private static void measure(String name, int rounds, Case body) throws IOException {
+        long result = 0;
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            for (int i = 0; i < 1000; i++) {
+                result += body.run();
+            }
+        }
+
+        double[] nanosPerOp = new double[rounds];
+        for (int r = 0; r < rounds; r++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + ROUND_NANOS;
+            long now;
+            do {
+                for (int i = 0; i < 1000; i++) {
+                    result += body.run();
+                }
+                ops += 1000;
+                now = System.nanoTime();
+            } while (now < end);
+            nanosPerOp[r] = (double) (now - start) / ops;
+        }
+        sink += result;
+
+        java.util.Arrays.sort(nanosPerOp);
+        System.out.println(String.format(Locale.ROOT, "%-32s %12.1f %12.1f",
+                name, nanosPerOp[0], nanosPerOp[rounds / 2]));
+    }
+}
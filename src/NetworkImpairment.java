@@ -0,0 +1,515 @@
+//Seeded emulation of a lossy, slow and reordering network link
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Emulates an imperfect link between sender and receiver, in process, so
+ * loss recovery and rate control can be tuned reproducibly on one machine.
+ * Every transport of a transfer is wrapped in the same link, which gives:
+ * <ul>
+ *   <li>random loss, either independent per datagram (Bernoulli) or in
+ *       bursts (Gilbert-Elliott, a good and a bad state with their own loss)</li>
+ *   <li>a fixed delay plus random jitter</li>
+ *   <li>reordering, by holding back a share of datagrams</li>
+ *   <li>duplication</li>
+ *   <li>corruption, by flipping one bit of a datagram</li>
+ *   <li>a bottleneck rate with a drop-tail queue, shared by all transports</li>
+ * </ul>
+ * Random choices come from per-transport generators derived from one seed,
+ * so the same seed makes the same loss and duplication decisions for the
+ * same sequence of sends. Delayed datagrams are delivered by a single
+ * daemon thread at their due time.
+ * <p>
+ * The delay is one way, from sender to receiver. The sender's control
+ * frames take it too, queued behind the datagrams already on the link, so
+ * a sequence list never overtakes the burst it describes; they are never
+ * lost, jittered or reordered. Replies from the receiver are not delayed,
+ * so the emulated round trip is the delay plus the real one.
+ * <p>
+ * A link can be described in one string, as used on the command line:
+ * <pre>
+ *   loss=0.01,ge=P:R:K:H,delay=MS,jitter=MS,reorder=P,dup=P,corrupt=P,rate=MBPS,queue=KB,seed=N
+ * </pre>
+ * where ge gives the Gilbert-Elliott chance of going bad (P) and good again
+ * (R) per datagram and the loss in the good (K) and bad (H) state.
+ */
+public class NetworkImpairment {
+    private static final long REORDER_NANOS = 1_000_000;    // How long a reordered datagram is held back
+    private static final int DEFAULT_QUEUE_BYTES = 256 * 1024;
+
+    private double loss = 0;
+    private boolean gilbertElliott = false;
+    private double goodToBad = 0;
+    private double badToGood = 1;
+    private double goodLoss = 0;
+    private double badLoss = 0;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private double reorder = 0;
+    private double duplicate = 0;
+    private double corrupt = 0;
+    private long rateBitsPerSecond = 0;  // 0 means no bottleneck
+    private int queueBytes = DEFAULT_QUEUE_BYTES;
+    private long seed = 1;
+
+    private final AtomicInteger transportCount = new AtomicInteger();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong queueDrops = new AtomicLong();
+    private final AtomicLong duplicated = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+
+    // The emulated link, shared by all transports and guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>();
+    private long linkFreeAt = 0;        // nanoTime at which the bottleneck has sent everything queued
+    private long order = 0;
+    private Thread deliveryThread;
+
+    /**
+     * A datagram waiting for its delivery time.
+     */
+    private static class Pending implements Comparable<Pending> {
+        final long due;
+        final long order;
+        final PacketTransport target;
+        final ByteBuffer datagram;
+
+        Pending(long due, long order, PacketTransport target, ByteBuffer datagram) {
+            this.due = due;
+            this.order = order;
+            this.target = target;
+            this.datagram = datagram;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            return due != other.due ? Long.compare(due, other.due) : Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Parses a link description such as "loss=0.02,delay=5,seed=7".
+     *
+     * @param spec Comma-separated key=value settings, see the class comment
+     * @return The described link
+     * @throws IllegalArgumentException If the description cannot be parsed
+     */
+    public static NetworkImpairment parse(String spec) {
+        NetworkImpairment link = new NetworkImpairment();
+        for (String setting : spec.split(",")) {
+            String[] keyValue = setting.trim().split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("Expected key=value in link description: " + setting);
+            }
+            String value = keyValue[1].trim();
+            try {
+                switch (keyValue[0].trim()) {
+                    case "loss": link.setLoss(Double.parseDouble(value)); break;
+                    case "ge": {
+                        String[] ge = value.split(":");
+                        if (ge.length != 4) {
+                            throw new IllegalArgumentException("ge needs P:R:K:H, got " + value);
+                        }
+                        link.setGilbertElliott(Double.parseDouble(ge[0]), Double.parseDouble(ge[1]),
+                                Double.parseDouble(ge[2]), Double.parseDouble(ge[3]));
+                        break;
+                    }
+                    case "delay": link.setDelayMillis(Double.parseDouble(value)); break;
+                    case "jitter": link.setJitterMillis(Double.parseDouble(value)); break;
+                    case "reorder": link.setReorder(Double.parseDouble(value)); break;
+                    case "dup": link.setDuplicate(Double.parseDouble(value)); break;
+                    case "corrupt": link.setCorrupt(Double.parseDouble(value)); break;
+                    case "rate": link.setRateMbps(Integer.parseInt(value)); break;
+                    case "queue": link.setQueueBytes(Integer.parseInt(value) * 1024); break;
+                    case "seed": link.setSeed(Long.parseLong(value)); break;
+                    default: throw new IllegalArgumentException("Unknown link setting: " + keyValue[0]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number in link description: " + setting);
+            }
+        }
+        return link;
+    }
+
+    /**
+     * Drops each datagram independently with the given probability.
+     *
+     * @param loss The share of datagrams to drop, 0 to 1
+     * @return This link
+     */
+    public NetworkImpairment setLoss(double loss) {
+        this.loss = probability(loss);
+        this.gilbertElliott = false;
+        return this;
+    }
+
+    /**
+     * Drops datagrams in bursts with the Gilbert-Elliott model. Each datagram
+     * is lost with the loss of the current state, after which the state may
+     * change. The mean loss is (R * K + P * H) / (P + R).
+     *
+     * @param goodToBad The chance of moving from the good to the bad state per datagram
+     * @param badToGood The chance of moving from the bad to the good state per datagram
+     * @param goodLoss The loss in the good state
+     * @param badLoss The loss in the bad state
+     * @return This link
+     */
+    public NetworkImpairment setGilbertElliott(double goodToBad, double badToGood, double goodLoss, double badLoss) {
+        this.goodToBad = probability(goodToBad);
+        this.badToGood = probability(badToGood);
+        this.goodLoss = probability(goodLoss);
+        this.badLoss = probability(badLoss);
+        this.gilbertElliott = true;
+        return this;
+    }
+
+    public NetworkImpairment setDelayMillis(double delayMillis) {
+        this.delayNanos = (long) (Math.max(0, delayMillis) * 1e6);
+        return this;
+    }
+
+    /**
+     * Adds a uniformly random extra delay of up to the given time to every
+     * datagram. Jitter larger than the gap between datagrams reorders them.
+     *
+     * @param jitterMillis The largest extra delay in milliseconds
+     * @return This link
+     */
+    public NetworkImpairment setJitterMillis(double jitterMillis) {
+        this.jitterNanos = (long) (Math.max(0, jitterMillis) * 1e6);
+        return this;
+    }
+
+    /**
+     * Holds back the given share of datagrams for a millisecond, so the ones
+     * sent after them overtake them.
+     *
+     * @param reorder The share of datagrams to hold back, 0 to 1
+     * @return This link
+     */
+    public NetworkImpairment setReorder(double reorder) {
+        this.reorder = probability(reorder);
+        return this;
+    }
+
+    public NetworkImpairment setDuplicate(double duplicate) {
+        this.duplicate = probability(duplicate);
+        return this;
+    }
+
+    public NetworkImpairment setCorrupt(double corrupt) {
+        this.corrupt = probability(corrupt);
+        return this;
+    }
+
+    /**
+     * Limits the link to a bottleneck rate. Datagrams queue behind it and are
+     * dropped when the queue is full, as a router would.
+     *
+     * @param rateMbps The bottleneck rate in megabits per second, 0 for none
+     * @return This link
+     */
+    public NetworkImpairment setRateMbps(int rateMbps) {
+        this.rateBitsPerSecond = Math.max(0, rateMbps) * 1_000_000L;
+        return this;
+    }
+
+    public NetworkImpairment setQueueBytes(int queueBytes) {
+        this.queueBytes = Math.max(1, queueBytes);
+        return this;
+    }
+
+    public NetworkImpairment setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getLost() {
+        return lost.get();
+    }
+
+    public long getQueueDrops() {
+        return queueDrops.get();
+    }
+
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    public long getReordered() {
+        return reordered.get();
+    }
+
+    public long getCorrupted() {
+        return corrupted.get();
+    }
+
+    /**
+     * Puts this link in front of a transport. Transports are numbered in the
+     * order they are wrapped, and each gets its own generator from the seed.
+     *
+     * @param transport The transport the link delivers to
+     * @return A transport that sends through the link
+     */
+    public PacketTransport wrap(PacketTransport transport) {
+        return new ImpairedTransport(transport, new Random(seed * 1_000_003L + transportCount.getAndIncrement()));
+    }
+
+    /**
+     * Puts this link's delay in front of the sender's control connection.
+     * Everything written is held until flush and then delivered as one
+     * piece after the delay, behind the datagrams queued at the bottleneck.
+     *
+     * @param out The control connection's stream
+     * @return A stream that writes through the link
+     */
+    public OutputStream wrapControl(OutputStream out) {
+        return new DelayedControl(out);
+    }
+
+    private boolean isScheduled() {
+        return delayNanos > 0 || jitterNanos > 0 || reorder > 0 || rateBitsPerSecond > 0;
+    }
+
+    /**
+     * Queues a copy of a datagram for delivery after the bottleneck, the
+     * delay and any extra hold-back. Called with the link lock held.
+     */
+    private void schedule(PacketTransport target, ByteBuffer datagram, long extraNanos) {
+        long now = System.nanoTime();
+        long departure = now;
+        if (rateBitsPerSecond > 0) {
+            long start = Math.max(now, linkFreeAt);
+            long backlogBytes = (start - now) * rateBitsPerSecond / 8_000_000_000L;
+            if (backlogBytes + datagram.remaining() > queueBytes) {
+                queueDrops.incrementAndGet();
+                return;
+            }
+            departure = start + datagram.remaining() * 8_000_000_000L / rateBitsPerSecond;
+            linkFreeAt = departure;
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+        copy.put(datagram.duplicate()).flip();
+        enqueue(new Pending(departure + delayNanos + extraNanos, order++, target, copy));
+    }
+
+    /**
+     * Adds an entry to the delivery queue, starting the delivery thread on
+     * first use. Called with the link lock held.
+     */
+    private void enqueue(Pending entry) {
+        pending.add(entry);
+        if (pending.peek() == entry) {
+            changed.signal();
+        }
+        if (deliveryThread == null) {
+            deliveryThread = new Thread(this::deliver, "rbudp-impairment");
+            deliveryThread.setDaemon(true);
+            deliveryThread.start();
+        }
+    }
+
+    private void deliver() {
+        while (true) {
+            Pending next;
+            lock.lock();
+            try {
+                while (true) {
+                    next = pending.peek();
+                    long wait = next == null ? Long.MAX_VALUE : next.due - System.nanoTime();
+                    if (wait <= 0) {
+                        pending.poll();
+                        break;
+                    }
+                    changed.awaitNanos(Math.min(wait, TimeUnit.SECONDS.toNanos(1)));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                next.target.send(next.datagram);
+            } catch (IOException e) {
+                // The transfer has closed its transports; whatever is still in flight is lost
+            }
+        }
+    }
+
+    private static double probability(double p) {
+        if (!(p >= 0 && p <= 1)) {
+            throw new IllegalArgumentException("Not a probability: " + p);
+        }
+        return p;
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + sent + " lost=" + lost + " queueDrops=" + queueDrops
+                + " duplicated=" + duplicated + " reordered=" + reordered + " corrupted=" + corrupted;
+    }
+
+    /**
+     * The sender's control stream behind the link. Frames are written by
+     * the delivery thread, in the order they were flushed.
+     */
+    private class DelayedControl extends OutputStream {
+        private final OutputStream out;
+        private final ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private final PacketTransport target;
+
+        DelayedControl(OutputStream out) {
+            this.out = out;
+            this.target = new PacketTransport() {
+                @Override
+                public void send(ByteBuffer frame) throws IOException {
+                    out.write(frame.array(), frame.position(), frame.remaining());
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        @Override
+        public void write(int b) {
+            held.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            held.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (held.size() == 0) {
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.wrap(held.toByteArray());
+            held.reset();
+            if (!isScheduled()) {
+                target.send(frame);
+                return;
+            }
+            lock.lock();
+            try {
+                // Behind whatever the bottleneck still has to send, but never reordered
+                long due = Math.max(System.nanoTime(), linkFreeAt) + delayNanos;
+                enqueue(new Pending(due, order++, target, frame));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * One transport behind the link. Each is used by a single send stream,
+     * so its generator and loss state need no locking.
+     */
+    private class ImpairedTransport implements PacketTransport {
+        private final PacketTransport inner;
+        private final Random random;
+        private boolean bad = false;    // Gilbert-Elliott state
+
+        ImpairedTransport(PacketTransport inner, Random random) {
+            this.inner = inner;
+            this.random = random;
+        }
+
+        @Override
+        public void send(ByteBuffer datagram) throws IOException {
+            sent.incrementAndGet();
+            if (isLost()) {
+                lost.incrementAndGet();
+                datagram.position(datagram.limit());
+                return;
+            }
+            if (corrupt > 0 && random.nextDouble() < corrupt) {
+                // Damage a copy, the sender still needs its buffer intact for parity
+                corrupted.incrementAndGet();
+                ByteBuffer damaged = ByteBuffer.allocate(datagram.remaining());
+                damaged.put(datagram.duplicate()).flip();
+                int at = random.nextInt(damaged.limit());
+                damaged.put(at, (byte) (damaged.get(at) ^ (1 << random.nextInt(8))));
+                datagram.position(datagram.limit());
+                datagram = damaged;
+            }
+            boolean twice = duplicate > 0 && random.nextDouble() < duplicate;
+            if (twice) {
+                duplicated.incrementAndGet();
+            }
+
+            if (!isScheduled()) {
+                int start = datagram.position();
+                inner.send(datagram);
+                if (twice) {
+                    datagram.position(start);
+                    inner.send(datagram);
+                }
+                return;
+            }
+
+            long extra = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+            if (reorder > 0 && random.nextDouble() < reorder) {
+                reordered.incrementAndGet();
+                extra += REORDER_NANOS;
+            }
+            lock.lock();
+            try {
+                schedule(inner, datagram, extra);
+                if (twice) {
+                    schedule(inner, datagram, extra);
+                }
+            } finally {
+                lock.unlock();
+            }
+            datagram.position(datagram.limit());
+        }
+
+        private boolean isLost() {
+            if (!gilbertElliott) {
+                return loss > 0 && random.nextDouble() < loss;
+            }
+            boolean dropped = random.nextDouble() < (bad ? badLoss : goodLoss);
+            bad = bad ? random.nextDouble() >= badToGood : random.nextDouble() < goodToBad;
+            return dropped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inner.close();
+        }
+
+        @Override
+        public String toString() {
+            return inner.toString();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+//Token bucket that spaces out datagrams to hit a target bitrate
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the sender's blast to a target bitrate.
+ * Tokens (bytes) refill continuously at the target rate and a datagram may
+ * only leave once enough tokens are available. Long waits park the thread,
+ * while the last stretch of a wait is spun so packets are spaced with
+ * microsecond precision rather than at the scheduler's granularity.
+ */
+public final class Pacer {
+    private static final long SPIN_NANOS = 50_000;     // Waits shorter than this are spun
+    private static final long BUCKET_NANOS = 1_000_000; // Burst allowance, in time at the target rate
+
+    private final int maxPacketBytes;
+    private long bitsPerSecond;
+    private double bytesPerNano;
+    private double bucketBytes;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a pacer.
+     *
+     * @param bitsPerSecond The target rate, or 0 to send as fast as possible
+     * @param maxPacketBytes The largest datagram that will be paced
+     */
+    public Pacer(long bitsPerSecond, int maxPacketBytes) {
+        this.maxPacketBytes = maxPacketBytes;
+        this.lastRefill = System.nanoTime();
+        setRate(bitsPerSecond);
+    }
+
+    /**
+     * Changes the target rate, keeping the tokens already earned up to the new bucket size.
+     *
+     * @param bitsPerSecond The new target rate, or 0 for unlimited
+     */
+    public void setRate(long bitsPerSecond) {
+        this.bitsPerSecond = Math.max(0, bitsPerSecond);
+        this.bytesPerNano = this.bitsPerSecond / 8e9;
+        this.bucketBytes = Math.max(maxPacketBytes, bytesPerNano * BUCKET_NANOS);
+        this.tokens = Math.min(tokens, bucketBytes);
+    }
+
+    public long getRate() {
+        return bitsPerSecond;
+    }
+
+    /**
+     * Blocks until a datagram of the given size may be sent.
+     *
+     * @param bytes The size of the datagram
+     */
+    public void acquire(int bytes) {
+        if (bitsPerSecond == 0) {
+            return;
+        }
+
+        long now = refill();
+        if (tokens < bytes) {
+            long deadline = now + (long) Math.ceil((bytes - tokens) / bytesPerNano);
+            long remaining = deadline - now;
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            while (System.nanoTime() < deadline) {
+                Thread.onSpinWait();
+            }
+            refill();
+        }
+        tokens -= bytes;
+    }
+
+    private long refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bucketBytes, tokens + (now - lastRefill) * bytesPerNano);
+        lastRefill = now;
+        return now;
+    }
+}
@@ -0,0 +1,176 @@
+//Packed set of received sequence numbers, one bit per packet
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size bitset of sequence numbers backed by atomic 64-bit words.
+ * Marking a packet is a single compare-and-set, so several receive threads
+ * can share one bitmap without locking and without boxing every sequence
+ * number into a HashSet.
+ */
+public class PacketBitmap {
+    private final AtomicLongArray words;
+    private final int size;
+
+    /**
+     * Creates an empty bitmap.
+     *
+     * @param size The number of packets in the transfer
+     */
+    public PacketBitmap(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether a packet has been marked as received.
+     *
+     * @param seq The sequence number of the packet
+     * @return True if the packet was received
+     */
+    public boolean get(int seq) {
+        return (words.get(seq >>> 6) & (1L << seq)) != 0;
+    }
+
+    /**
+     * Marks a packet as received.
+     *
+     * @param seq The sequence number of the packet
+     * @return True if this call set the bit, false if it was already set
+     */
+    public boolean set(int seq) {
+        int index = seq >>> 6;
+        long mask = 1L << seq;
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Finds the first packet that has not been received, starting at from.
+     *
+     * @param from The first sequence number to look at
+     * @param to The sequence number to stop before
+     * @return The first missing sequence number, or to if there is none
+     */
+    public int nextClearBit(int from, int to) {
+        if (from >= to) {
+            return to;
+        }
+        int index = from >>> 6;
+        long word = ~words.get(index) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int seq = (index << 6) + Long.numberOfTrailingZeros(word);
+                return Math.min(seq, to);
+            }
+            if (((long) ++index << 6) >= to) {
+                return to;
+            }
+            word = ~words.get(index);
+        }
+    }
+
+    /**
+     * Finds the first packet that has been received, starting at from.
+     *
+     * @param from The first sequence number to look at
+     * @param to The sequence number to stop before
+     * @return The first received sequence number, or to if there is none
+     */
+    public int nextSetBit(int from, int to) {
+        if (from >= to) {
+            return to;
+        }
+        int index = from >>> 6;
+        long word = words.get(index) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int seq = (index << 6) + Long.numberOfTrailingZeros(word);
+                return Math.min(seq, to);
+            }
+            if (((long) ++index << 6) >= to) {
+                return to;
+            }
+            word = words.get(index);
+        }
+    }
+
+    /**
+     * Lists the packets that have been received.
+     *
+     * @return The set sequence numbers in ascending order
+     */
+    public int[] toArray() {
+        int[] seqs = new int[cardinality()];
+        int count = 0;
+        for (int i = 0; i < words.length() && count < seqs.length; i++) {
+            long word = words.get(i);
+            while (word != 0 && count < seqs.length) {
+                seqs[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return seqs;
+    }
+
+    public int wordCount() {
+        return words.length();
+    }
+
+    /**
+     * Returns 64 packets' worth of bits, for saving the bitmap.
+     *
+     * @param index The word to read; it covers packets index * 64 to index * 64 + 63
+     * @return The word
+     */
+    public long getWord(int index) {
+        return words.get(index);
+    }
+
+    /**
+     * Marks every packet whose bit is set in the word, for restoring a saved bitmap.
+     *
+     * @param index The word to update
+     * @param bits The bits to set
+     */
+    public void orWord(int index, long bits) {
+        words.getAndAccumulate(index, bits, (a, b) -> a | b);
+    }
+
+    /**
+     * Copies the bitmap word by word. Bits set while the copy runs may or may
+     * not be in it, but every bit set before it started is.
+     *
+     * @return A new bitmap with the same packets marked
+     */
+    public PacketBitmap copy() {
+        PacketBitmap copy = new PacketBitmap(size);
+        for (int i = 0; i < words.length(); i++) {
+            copy.words.set(i, words.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Counts the packets that have been received.
+     *
+     * @return The number of set bits
+     */
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
+    }
+}
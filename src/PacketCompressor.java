@@ -0,0 +1,176 @@
+//Deflates packet payloads on a worker pool, skipping those that do not shrink
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage of the sender.
+ * Every packet is deflated on its own, so each datagram still decodes by
+ * itself and loss, retransmission and parity keep working per packet. A
+ * packet is only sent compressed when that saves at least an eighth of its
+ * datagram; otherwise the raw datagram goes out as usual. Once packets keep
+ * failing to shrink, as with media or archives, only one in SAMPLE_EVERY is
+ * tried until one pays off again.
+ * <p>
+ * Compression runs on a pool of worker threads shared by the transfer's
+ * send streams, which build upcoming batches while the current one is
+ * being blasted. The workers copy packets out of the transfer's PacketSource
+ * while the streams do, which the source allows. Deflater and Inflater
+ * instances are owned by the callers, one per thread, and use raw deflate
+ * without the zlib wrapper.
+ */
+public class PacketCompressor implements AutoCloseable {
+    public static final int CHUNK_SIZE = 64 * 1024;     // Bytes per chunk on the TCP path
+    private static final int MISSES_BEFORE_SAMPLING = 16;
+    private static final int SAMPLE_EVERY = 64;
+
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * Starts the worker pool.
+     *
+     * @param workerCount The number of compression threads
+     */
+    public PacketCompressor(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+        this.workers = Executors.newFixedThreadPool(this.workerCount, r -> {
+            Thread thread = new Thread(r, "rbudp-compress");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Runs a task on the worker pool.
+     *
+     * @param task The task
+     * @return Its future
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return workers.submit(task);
+    }
+
+    /**
+     * Creates a deflater for the caller's thread.
+     *
+     * @return A deflater tuned for speed
+     */
+    public static Deflater newDeflater() {
+        return new Deflater(Deflater.BEST_SPEED, true);
+    }
+
+    /**
+     * Builds the datagram for one packet, compressed if that pays off.
+     *
+     * @param deflater The calling thread's deflater
+     * @param seq The sequence number of the packet
+     * @param raw The payload, from its position to its limit; left alone
+     * @param datagram Where to build the datagram, with room for the raw one; flipped for sending, not sealed
+     * @return The bytes saved, or 0 if the datagram is raw
+     */
+    public int build(Deflater deflater, int seq, ByteBuffer raw, ByteBuffer datagram) {
+        int length = raw.remaining();
+        int rawSize = DatagramFormat.HEADER_SIZE + length;
+        if (misses.get() < MISSES_BEFORE_SAMPLING || skipped.incrementAndGet() % SAMPLE_EVERY == 0) {
+            deflater.reset();
+            deflater.setInput(raw.duplicate());
+            deflater.finish();
+            datagram.clear();
+            datagram.limit(rawSize - (rawSize >> 3));
+            datagram.position(DatagramFormat.COMPRESSED_HEADER_SIZE);
+            deflater.deflate(datagram);
+            if (deflater.finished()) {
+                misses.set(0);
+                datagram.flip();
+                datagram.putInt(0, DatagramFormat.COMPRESSED).putInt(4, 0).putInt(8, seq);
+                return rawSize - datagram.remaining();
+            }
+            misses.incrementAndGet();
+        }
+        datagram.clear();
+        datagram.putInt(seq).putInt(0).put(raw.duplicate()).flip();
+        return 0;
+    }
+
+    /**
+     * Inflates the payload of a COMPRESSED datagram.
+     *
+     * @param inflater The calling thread's inflater, created with nowrap
+     * @param datagram The datagram, from its position to its limit; its position is moved past the input read
+     * @param dest Where to put the payload, at most a packet; flipped for reading
+     * @return The payload length
+     * @throws DataFormatException If the payload does not inflate to at most one packet
+     */
+    public static int inflate(Inflater inflater, ByteBuffer datagram, ByteBuffer dest) throws DataFormatException {
+        inflater.reset();
+        datagram.position(datagram.position() + DatagramFormat.COMPRESSED_HEADER_SIZE);
+        inflater.setInput(datagram);
+        dest.clear();
+        inflater.inflate(dest);
+        if (!inflater.finished()) {
+            throw new DataFormatException("Compressed packet does not fit a packet");
+        }
+        dest.flip();
+        return dest.remaining();
+    }
+
+    /**
+     * Deflates one chunk of the TCP stream, if that pays off.
+     *
+     * @param deflater The calling thread's deflater
+     * @param data The chunk
+     * @param length The chunk's length
+     * @param out Where to put the compressed chunk, at least as long as the chunk
+     * @return The compressed length, or -1 if the chunk should go raw
+     */
+    public static int deflateChunk(Deflater deflater, byte[] data, int length, byte[] out) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int limit = length - (length >> 3);
+        int compressed = deflater.deflate(out, 0, limit);
+        return deflater.finished() && compressed < limit ? compressed : -1;
+    }
+
+    /**
+     * Inflates one chunk of the TCP stream.
+     *
+     * @param inflater The calling thread's inflater, created with nowrap
+     * @param data The compressed chunk
+     * @param length Its length
+     * @param out Where to put the chunk
+     * @param rawLength The length the chunk must inflate to
+     * @throws IOException If it does not inflate to exactly that length
+     */
+    public static void inflateChunk(Inflater inflater, byte[] data, int length, byte[] out, int rawLength)
+            throws IOException {
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        try {
+            if (inflater.inflate(out, 0, rawLength) != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed chunk does not inflate to " + rawLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+}
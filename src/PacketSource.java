@@ -0,0 +1,246 @@
+//Serves packet payloads for the sender straight out of a memory-mapped file
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32C;
+
+/**
+ * Supplies the payload of any packet of a file on demand.
+ * The file is mapped in windows with FileChannel.map the first time a packet
+ * inside that window is asked for, so nothing is read onto the heap up front
+ * and a retransmission simply slices the same mapping again.
+ * <p>
+ * A source can also serve all the files of a Manifest, one sequence space
+ * across them. Those files are only opened for as long as it takes to map
+ * a window, since a mapping outlives its channel, so sending thousands of
+ * files does not hold thousands of descriptors.
+ * <p>
+ * At most MAX_MAPPED_WINDOWS windows and MAX_MAPPED_BYTES of them are kept,
+ * the oldest mapped dropped first, so neither thousands of small files nor
+ * one huge file run into the process's limit on mappings. A dropped window
+ * is unmapped once the last copy using it is done and the collector finds
+ * it, and is mapped again if a retransmission needs it.
+ * <p>
+ * Send streams and compression workers copy packets at the same time.
+ * Mapped windows are published through atomic arrays, so the per-packet
+ * lookup takes no lock, and only mapping and dropping windows is serialized,
+ * so a region is never mapped twice at once.
+ */
+public class PacketSource implements AutoCloseable {
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024; // Size of one mapped window
+    private static final int FINGERPRINT_BYTES = 64 * 1024;      // Read from each end of the file for its fingerprint
+    private static final int MAX_MAPPED_WINDOWS = 1024;
+    private static final long MAX_MAPPED_BYTES = 4L * 1024 * 1024 * 1024;
+
+    private final FileChannel channel;  // Kept open for a single file, null for a manifest
+    private final Manifest manifest;
+    private final File[] files;
+    private final long fileSize;
+    private final int packetSize;
+    private final int totalPackets;
+    private final int packetsPerWindow;
+    private final AtomicReferenceArray<AtomicReferenceArray<MappedByteBuffer>> windows; // Per file, mapped on first use
+    private final Map<Long, Integer> mapped = new LinkedHashMap<>();   // Sizes of the kept windows, oldest first
+    private long mappedBytes;
+
+    /**
+     * Opens the file for reading and works out how many packets it splits into.
+     *
+     * @param file The file to be sent
+     * @param packetSize The number of payload bytes per packet
+     * @throws IOException If the file cannot be opened or has too many packets
+     */
+    public PacketSource(File file, int packetSize) throws IOException {
+        if (packetSize <= 0) {
+            throw new IllegalArgumentException("Packet size must be positive: " + packetSize);
+        }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.manifest = new Manifest(new String[] {file.getName()}, new long[] {channel.size()}, packetSize);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.files = new File[] {file};
+        this.fileSize = manifest.getTotalBytes();
+        this.packetSize = packetSize;
+        this.totalPackets = manifest.getTotalPackets();
+        this.packetsPerWindow = (int) Math.max(1, WINDOW_BYTES / packetSize);
+        this.windows = new AtomicReferenceArray<>(1);
+    }
+
+    /**
+     * Serves the files of a manifest as one sequence of packets.
+     *
+     * @param manifest The files and their place in the sequence
+     * @param files The file on disk for every manifest entry
+     */
+    public PacketSource(Manifest manifest, File[] files) {
+        this.channel = null;
+        this.manifest = manifest;
+        this.files = files;
+        this.fileSize = manifest.getTotalBytes();
+        this.packetSize = manifest.getPacketSize();
+        this.totalPackets = manifest.getTotalPackets();
+        this.packetsPerWindow = (int) Math.max(1, WINDOW_BYTES / packetSize);
+        this.windows = new AtomicReferenceArray<>(files.length);
+    }
+
+    public int getTotalPackets() {
+        return totalPackets;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Returns the payload length of a packet; only the last one of each file can be short.
+     *
+     * @param seq The sequence number of the packet
+     * @return The number of payload bytes in the packet
+     */
+    public int payloadLength(int seq) {
+        return manifest.payloadLength(seq);
+    }
+
+    /**
+     * Copies the payload of a packet into the given buffer at its position,
+     * advancing the position past the payload. No objects are allocated.
+     *
+     * @param seq The sequence number of the packet
+     * @param dest The buffer to copy into
+     * @return The number of bytes copied
+     * @throws IOException If the window holding the packet cannot be mapped
+     */
+    public int copyPacket(int seq, ByteBuffer dest) throws IOException {
+        if (seq < 0 || seq >= totalPackets) {
+            throw new IndexOutOfBoundsException("No packet with SeqNum " + seq);
+        }
+        int entry = manifest.entryOf(seq);
+        int local = seq - manifest.getFirstSeq(entry);
+        int length = (int) Math.min(packetSize, manifest.getSize(entry) - (long) local * packetSize);
+        MappedByteBuffer window = window(entry, local / packetsPerWindow);
+        dest.put(dest.position(), window, (local % packetsPerWindow) * packetSize, length);
+        dest.position(dest.position() + length);
+        return length;
+    }
+
+    /**
+     * Identifies this version of the file cheaply, so a receiver can tell
+     * whether a partial copy it holds is of the same file. Only the size,
+     * the modification time and both ends of the file are hashed; reading a
+     * multi-gigabyte file whole just to resume it would defeat the purpose.
+     * The files of a manifest are fingerprinted by their paths, sizes and
+     * modification times alone.
+     *
+     * @return A CRC32C-based fingerprint of the file
+     * @throws IOException If the file cannot be read
+     */
+    public long getFingerprint() throws IOException {
+        CRC32C crc = new CRC32C();
+        if (channel == null) {
+            ByteBuffer entry = ByteBuffer.allocate(16);
+            for (int i = 0; i < files.length; i++) {
+                crc.update(manifest.getPath(i).getBytes(StandardCharsets.UTF_8));
+                entry.clear();
+                entry.putLong(manifest.getSize(i)).putLong(files[i].lastModified()).flip();
+                crc.update(entry);
+            }
+            return crc.getValue() << 32 | (fileSize & 0xFFFFFFFFL);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_BYTES);
+        buffer.putLong(fileSize).putLong(files[0].lastModified()).flip();
+        crc.update(buffer);
+        long tail = Math.max(0, fileSize - FINGERPRINT_BYTES);
+        for (long start : new long[] {0, tail}) {
+            buffer.clear();
+            while (buffer.hasRemaining() && start + buffer.position() < fileSize) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            crc.update(buffer);
+        }
+        return crc.getValue() << 32 | (fileSize & 0xFFFFFFFFL);
+    }
+
+    private MappedByteBuffer window(int entry, int index) throws IOException {
+        AtomicReferenceArray<MappedByteBuffer> fileWindows = windows.get(entry);
+        MappedByteBuffer window = fileWindows == null ? null : fileWindows.get(index);
+        return window != null ? window : map(entry, index);
+    }
+
+    /**
+     * Maps a window that is not mapped yet, and drops the oldest windows
+     * when that goes over the limits. Callers race for it, so the check is
+     * repeated under the lock before mapping.
+     */
+    private synchronized MappedByteBuffer map(int entry, int index) throws IOException {
+        // Windows hold a whole number of packets so a packet never spans two mappings
+        long windowBytes = (long) packetsPerWindow * packetSize;
+        long size = manifest.getSize(entry);
+        AtomicReferenceArray<MappedByteBuffer> fileWindows = windows.get(entry);
+        if (fileWindows == null) {
+            fileWindows = new AtomicReferenceArray<>((int) ((size + windowBytes - 1) / windowBytes));
+            windows.set(entry, fileWindows);
+        }
+        MappedByteBuffer window = fileWindows.get(index);
+        if (window == null) {
+            long start = index * windowBytes;
+            if (channel != null) {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, size - start));
+            } else {
+                try (FileChannel fileChannel = FileChannel.open(files[entry].toPath(), StandardOpenOption.READ)) {
+                    if (fileChannel.size() < size) {
+                        throw new IOException(files[entry] + " shrank while being sent");
+                    }
+                    window = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowBytes, size - start));
+                }
+            }
+            fileWindows.set(index, window);
+            mapped.put(((long) entry << 32) | index, window.capacity());
+            mappedBytes += window.capacity();
+            evict();
+        }
+        return window;
+    }
+
+    /**
+     * Drops the oldest windows until the kept ones fit the limits, always
+     * keeping the newest. Callers hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Long, Integer>> oldest = mapped.entrySet().iterator();
+        while ((mapped.size() > MAX_MAPPED_WINDOWS || mappedBytes > MAX_MAPPED_BYTES) && mapped.size() > 1) {
+            Map.Entry<Long, Integer> window = oldest.next();
+            windows.get((int) (window.getKey() >>> 32)).set((int) (long) window.getKey(), null);
+            mappedBytes -= window.getValue();
+            oldest.remove();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+//Where the sender's datagrams go once they are built
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A one-way path for datagrams from a send stream to one receiver port.
+ * The real path is a UDP socket; tests and benchmarks can put an emulated
+ * lossy, slow or reordering link in between without the sender noticing.
+ */
+public interface PacketTransport extends AutoCloseable {
+
+    /**
+     * Sends the remaining bytes of the buffer as one datagram. The buffer
+     * may be reused as soon as this returns.
+     *
+     * @param datagram The datagram to send
+     * @throws IOException If the datagram cannot be handed to the network
+     */
+    void send(ByteBuffer datagram) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
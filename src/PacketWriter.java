@@ -0,0 +1,279 @@
+//Writes received packet payloads straight to their place in the output file
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Positional writer for the receiving side of an RBUDP transfer.
+ * The output file is preallocated to its final size and every payload is
+ * written at seq * packetSize, either the moment it arrives or, through a
+ * ReassemblyWindow, together with its neighbours once their run is complete.
+ * <p>
+ * A writer can also fill all the files of a Manifest. They are created and
+ * sized up front, but only MAX_OPEN_FILES of them are kept open at a time,
+ * least recently used first out; access to them is serialized, which small
+ * files do not notice.
+ */
+public class PacketWriter implements AutoCloseable {
+    private static final int MAX_OPEN_FILES = 32;
+
+    private final RandomAccessFile raf;     // The single file, null for a manifest
+    private final FileChannel channel;
+    private final Manifest manifest;
+    private final File[] files;
+    private final long fileSize;
+    private final int packetSize;
+
+    // Files of a manifest that are open, and those written since the last force
+    private final Map<Integer, FileChannel> openFiles;
+    private final BitSet unsynced;
+
+    /**
+     * Creates (or truncates) the output file and sizes it for the whole transfer.
+     *
+     * @param file The file to write the received data to
+     * @param fileSize The size of the file being sent
+     * @param packetSize The number of payload bytes per packet
+     * @throws IOException If the file cannot be created or resized
+     */
+    public PacketWriter(File file, long fileSize, int packetSize) throws IOException {
+        this(file, fileSize, packetSize, false);
+    }
+
+    /**
+     * Opens the output file, either fresh or keeping what an interrupted
+     * transfer already wrote.
+     *
+     * @param file The file to write the received data to
+     * @param fileSize The size of the file being sent
+     * @param packetSize The number of payload bytes per packet
+     * @param resume True to keep the file's contents, false to start from an empty file
+     * @throws IOException If the file cannot be created or resized
+     */
+    public PacketWriter(File file, long fileSize, int packetSize, boolean resume) throws IOException {
+        this.manifest = new Manifest(new String[] {file.getName()}, new long[] {fileSize}, packetSize);
+        this.files = new File[] {file};
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.fileSize = fileSize;
+        this.packetSize = packetSize;
+        this.openFiles = null;
+        this.unsynced = null;
+
+        if (!resume) {
+            raf.setLength(0);
+        }
+        raf.setLength(fileSize);
+    }
+
+    /**
+     * Creates or opens every file of a manifest, sized for the whole transfer.
+     *
+     * @param manifest The files and their place in the sequence
+     * @param files Where to write every manifest entry; missing parent directories are created
+     * @param resume True to keep the files' contents, false to start from empty files
+     * @throws IOException If a file cannot be created or resized
+     */
+    public PacketWriter(Manifest manifest, File[] files, boolean resume) throws IOException {
+        this.manifest = manifest;
+        this.files = files;
+        this.raf = null;
+        this.channel = null;
+        this.fileSize = manifest.getTotalBytes();
+        this.packetSize = manifest.getPacketSize();
+        this.unsynced = new BitSet(files.length);
+        this.openFiles = new LinkedHashMap<Integer, FileChannel>(MAX_OPEN_FILES * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+                if (size() <= MAX_OPEN_FILES) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (IOException e) {
+                    Log.warn("[Writer] Could not close " + files[eldest.getKey()] + ": " + e.getMessage());
+                }
+                return true;
+            }
+        };
+
+        for (int i = 0; i < files.length; i++) {
+            File parent = files[i].getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent);
+            }
+            try (RandomAccessFile file = new RandomAccessFile(files[i], "rw")) {
+                if (!resume) {
+                    file.setLength(0);
+                }
+                file.setLength(manifest.getSize(i));
+            }
+        }
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Writes the payload of one packet at its offset in the file.
+     *
+     * @param seq The sequence number of the packet
+     * @param payload The payload, from its position to its limit; consumed by the write
+     * @throws IOException If the payload does not fit the file or the write fails
+     */
+    public void writePacket(int seq, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (seq < 0 || seq >= manifest.getTotalPackets() || length > payloadLength(seq)) {
+            throw new IOException("Packet SeqNum " + seq + " of " + length + " bytes is outside the file");
+        }
+
+        if (channel != null) {
+            write(channel, (long) seq * packetSize, payload);
+            return;
+        }
+        int entry = manifest.entryOf(seq);
+        synchronized (openFiles) {
+            write(open(entry), manifest.offsetOf(entry, seq), payload);
+            unsynced.set(entry);
+        }
+    }
+
+    /**
+     * Writes a run of consecutive packets laid out one per packetSize slot,
+     * as a ReassemblyWindow holds them. A run within one file is a single
+     * write; a run over several files of a manifest is one write per file.
+     *
+     * @param firstSeq The sequence number of the first packet
+     * @param count The number of packets
+     * @param packets The slots, starting at the buffer's position; its position is left alone
+     * @throws IOException If the run does not fit the transfer or a write fails
+     */
+    public void writePackets(int firstSeq, int count, ByteBuffer packets) throws IOException {
+        int end = firstSeq + count;
+        if (firstSeq < 0 || count < 1 || end > manifest.getTotalPackets()) {
+            throw new IOException("Packets " + firstSeq + " to " + end + " are outside the file");
+        }
+        int start = packets.position();
+        for (int seq = firstSeq; seq < end; ) {
+            int entry = manifest.entryOf(seq);
+            int entryEnd = entry + 1 < manifest.size() ? Math.min(end, manifest.getFirstSeq(entry + 1)) : end;
+            // Only the last packet of a file can be short, so the run is contiguous in the buffer too
+            int bytes = (entryEnd - 1 - seq) * packetSize + payloadLength(entryEnd - 1);
+            int offset = start + (seq - firstSeq) * packetSize;
+            ByteBuffer run = packets.duplicate().limit(offset + bytes).position(offset);
+            if (channel != null) {
+                write(channel, (long) seq * packetSize, run);
+            } else {
+                synchronized (openFiles) {
+                    write(open(entry), manifest.offsetOf(entry, seq), run);
+                    unsynced.set(entry);
+                }
+            }
+            seq = entryEnd;
+        }
+    }
+
+    private static void write(FileChannel target, long position, ByteBuffer payload) throws IOException {
+        while (payload.hasRemaining()) {
+            position += target.write(payload, position);
+        }
+    }
+
+    /**
+     * Returns the payload length of a packet; only the last one of each file can be short.
+     *
+     * @param seq The sequence number of the packet
+     * @return The number of payload bytes in the packet
+     */
+    public int payloadLength(int seq) {
+        return manifest.payloadLength(seq);
+    }
+
+    /**
+     * Reads back the payload of a packet that has already been written, so
+     * lost packets can be rebuilt from parity.
+     *
+     * @param seq The sequence number of the packet
+     * @param dest The buffer to read into, at its position
+     * @return The number of bytes read
+     * @throws IOException If the read fails or the file ends early
+     */
+    public int readPacket(int seq, ByteBuffer dest) throws IOException {
+        int length = payloadLength(seq);
+        dest.limit(dest.position() + length);
+        if (channel != null) {
+            read(channel, (long) seq * packetSize, dest, seq);
+            return length;
+        }
+        int entry = manifest.entryOf(seq);
+        synchronized (openFiles) {
+            read(open(entry), manifest.offsetOf(entry, seq), dest, seq);
+        }
+        return length;
+    }
+
+    private static void read(FileChannel source, long position, ByteBuffer dest, int seq) throws IOException {
+        while (dest.hasRemaining()) {
+            int read = source.read(dest, position);
+            if (read < 0) {
+                throw new IOException("File ended while reading packet SeqNum " + seq);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Returns the open channel of a manifest entry, opening it if needed.
+     * Callers hold the openFiles lock.
+     */
+    private FileChannel open(int entry) throws IOException {
+        FileChannel open = openFiles.get(entry);
+        if (open == null) {
+            open = FileChannel.open(files[entry].toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            openFiles.put(entry, open);
+        }
+        return open;
+    }
+
+    /**
+     * Forces everything written so far onto the disk, so a journal saved
+     * afterwards only lists packets that would survive a crash.
+     *
+     * @throws IOException If the sync fails
+     */
+    public void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            return;
+        }
+        synchronized (openFiles) {
+            // Files closed since their last write still have to be synced, by reopening them
+            for (int entry = unsynced.nextSetBit(0); entry >= 0; entry = unsynced.nextSetBit(entry + 1)) {
+                open(entry).force(false);
+            }
+            unsynced.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            raf.close();
+            return;
+        }
+        synchronized (openFiles) {
+            for (FileChannel open : openFiles.values()) {
+                open.close();
+            }
+            openFiles.clear();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+//Path MTU discovery with UDP probes, for packets that are never fragmented
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+import jdk.net.ExtendedSocketOptions;
+
+/**
+ * Finds the largest IP packet that reaches the receiver whole.
+ * The sender sends PROBE datagrams of common MTU sizes, from the largest its
+ * own interface allows down, with the don't-fragment bit set, so a probe
+ * larger than any link on the way is dropped or refused instead of being
+ * split up. The receiver reports the largest probe that arrived over the
+ * control connection, and the packet size is derived from it.
+ * <p>
+ * A probe is [PROBE][crc:4][mtu:4] padded to fill an IP packet of that MTU.
+ * Probing happens on the control connection before the transfer header,
+ * introduced by the protocol character 'P'.
+ */
+public final class PathMtu {
+    public static final int MAX_MTU = 9000;     // Largest jumbo frame probed
+    public static final int DEFAULT_MTU = 1500;
+    private static final int[] PLATEAUS = {9000, 8166, 4352, 2002, 1500, 1492, 1280, 1006, 576};  // After RFC 1191
+    private static final int PROBE_COPIES = 3;  // Probes per size, in case one is lost
+    private static final long GRACE_NANOS = 250_000_000L;  // Longest wait for probes after the sender is done
+    private static final int UDP_HEADER = 8;
+
+    private PathMtu() {
+    }
+
+    /**
+     * Probes the path to a receiver that has been sent 'P'.
+     *
+     * @param in The control connection's input
+     * @param out The control connection's output
+     * @param host The receiver's host name or IP address
+     * @return The largest MTU the receiver saw, or 0 if no probe arrived
+     * @throws IOException If the control connection fails
+     */
+    public static int probe(DataInputStream in, DataOutputStream out, String host) throws IOException {
+        int port = in.readInt();
+        InetAddress address = InetAddress.getByName(host);
+        int[] sizes = candidates(Math.min(MAX_MTU, interfaceMtu(address)));
+        int ipHeader = ipHeaderSize(address);
+        ByteBuffer probe = ByteBuffer.allocateDirect(MAX_MTU);
+        CRC32C crc = new CRC32C();
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            if (channel.supportedOptions().contains(ExtendedSocketOptions.IP_DONTFRAGMENT)) {
+                channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+            } else {
+                Log.warn("[MTU] Cannot set don't-fragment here; probes are only bounded by the interface MTU");
+            }
+            channel.connect(new InetSocketAddress(address, port));
+            for (int mtu : sizes) {
+                probe.clear();
+                probe.putInt(DatagramFormat.PROBE).putInt(0).putInt(mtu);
+                probe.position(mtu - ipHeader - UDP_HEADER).flip();
+                DatagramFormat.seal(crc, probe);
+                try {
+                    for (int i = 0; i < PROBE_COPIES; i++) {
+                        probe.position(0);
+                        channel.write(probe);
+                    }
+                } catch (IOException e) {
+                    // Larger than a link the kernel already knows about
+                    Log.debug("[MTU] Probe of " + mtu + " refused: " + e.getMessage());
+                }
+            }
+        }
+        out.writeInt(sizes[0]);
+        out.flush();
+        int mtu = in.readInt();
+        Log.info("[MTU] Path MTU to " + host + " is " + (mtu > 0 ? mtu : "unknown") + " (interface allows "
+                + sizes[0] + ")");
+        return mtu;
+    }
+
+    /**
+     * Answers a sender's probes: offers a port, waits for the sender to
+     * finish, then reports the largest probe that arrived.
+     *
+     * @param in The control connection's input
+     * @param out The control connection's output
+     * @throws IOException If the control connection fails
+     */
+    public static void answer(DataInputStream in, DataOutputStream out) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, PLATEAUS.length * PROBE_COPIES * MAX_MTU);
+            channel.bind(new InetSocketAddress(0));
+            channel.configureBlocking(false);
+            out.writeInt(((InetSocketAddress) channel.getLocalAddress()).getPort());
+            out.flush();
+
+            int largest = in.readInt();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MTU);
+            CRC32C crc = new CRC32C();
+            int best = 0;
+            long deadline = System.nanoTime() + GRACE_NANOS;
+            // Probes may trail the sender's TCP message, so wait a little for the largest one
+            while (best < largest && System.nanoTime() < deadline) {
+                buffer.clear();
+                if (channel.receive(buffer) == null) {
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                buffer.flip();
+                if (buffer.remaining() >= 12 && buffer.getInt(0) == DatagramFormat.PROBE
+                        && DatagramFormat.verify(crc, buffer)) {
+                    best = Math.max(best, buffer.getInt(8));
+                }
+            }
+            out.writeInt(best);
+            out.flush();
+            Log.debug("[MTU] Largest probe received: " + best);
+        }
+    }
+
+    /**
+     * Returns the largest packet payload whose datagrams fit an MTU.
+     *
+     * @param mtu The path MTU
+     * @param host The receiver, whose address family sets the IP header size
+     * @param overhead The bytes in front of the payload in the largest datagram sent
+     * @return The packet size
+     * @throws IOException If the host cannot be resolved
+     */
+    public static int packetSizeFor(int mtu, String host, int overhead) throws IOException {
+        return mtu - ipHeaderSize(InetAddress.getByName(host)) - UDP_HEADER - overhead;
+    }
+
+    /**
+     * Finds the MTU of the local interface that leads to an address. No
+     * packet is sent; connecting a datagram channel only picks the route.
+     */
+    private static int interfaceMtu(InetAddress address) {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(new InetSocketAddress(address, 9));
+            InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+            NetworkInterface nif = NetworkInterface.getByInetAddress(local);
+            if (nif != null && nif.getMTU() > 0) {
+                return nif.getMTU();
+            }
+        } catch (IOException e) {
+            Log.debug("[MTU] Cannot read the interface MTU: " + e.getMessage());
+        }
+        return DEFAULT_MTU;
+    }
+
+    /**
+     * The plateau sizes up to the interface MTU, led by the interface MTU
+     * itself, largest first.
+     */
+    private static int[] candidates(int interfaceMtu) {
+        int[] sizes = new int[PLATEAUS.length + 1];
+        int count = 0;
+        sizes[count++] = interfaceMtu;
+        for (int plateau : PLATEAUS) {
+            if (plateau < interfaceMtu) {
+                sizes[count++] = plateau;
+            }
+        }
+        return Arrays.copyOf(sizes, count);
+    }
+
+    private static int ipHeaderSize(InetAddress address) {
+        return address instanceof Inet6Address ? 40 : 20;
+    }
+}
@@ -0,0 +1,68 @@
+//Turns per-packet progress into a fixed-rate stream of progress events
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces progress updates for one transfer.
+ * update() may be called for every packet from any number of threads; it
+ * costs a clock read and a compare, and only about ten times a second does
+ * one caller go on to notify the listener and redraw the console bar. The
+ * final update of a transfer is always reported.
+ */
+public class ProgressMeter {
+    private static final long INTERVAL_NANOS = 100_000_000L;  // 10 Hz
+    private static final int BAR_WIDTH = 50;
+
+    private final String label;
+    private final String fileName;
+    private final long total;
+    private final TransferListener listener;
+    private final AtomicLong nextReport = new AtomicLong(System.nanoTime());
+    private volatile int lastPercent = -1;
+
+    /**
+     * Creates a meter.
+     *
+     * @param label The tag shown in front of the console bar, such as "UDP"
+     * @param fileName The name of the file being transferred
+     * @param total The amount of work in the transfer, in packets or bytes
+     * @param listener The listener to report progress to
+     */
+    public ProgressMeter(String label, String fileName, long total, TransferListener listener) {
+        this.label = label;
+        this.fileName = fileName;
+        this.total = total;
+        this.listener = listener;
+    }
+
+    /**
+     * Records how much of the transfer is done.
+     *
+     * @param current The amount done so far, in the same unit as the total
+     */
+    public void update(long current) {
+        boolean finished = current >= total;
+        long now = System.nanoTime();
+        long due = nextReport.get();
+        if (!finished && (now - due < 0 || !nextReport.compareAndSet(due, now + INTERVAL_NANOS))) {
+            return;
+        }
+
+        int percent = total > 0 ? (int) Math.min(100, current * 100 / total) : 100;
+        if (percent == lastPercent) {
+            return;
+        }
+        lastPercent = percent;
+        listener.onProgress(fileName, percent);
+
+        if (Log.isEnabled(Log.Level.INFO)) {
+            int numHashes = percent * BAR_WIDTH / 100;
+            StringBuilder progressBar = new StringBuilder(BAR_WIDTH + label.length() + 10);
+            progressBar.append('[').append(label).append("] [");
+            for (int i = 0; i < BAR_WIDTH; i++) {
+                progressBar.append(i < numHashes ? '#' : '-');
+            }
+            progressBar.append("] ").append(percent).append('%');
+            Log.status(progressBar.toString());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+//Adjusts the sender's blast rate and burst size from per-round loss feedback
+/**
+ * AIMD controller for the RBUDP blast rate and burst size.
+ * After every NACK round the sender reports how many packets it blasted,
+ * how many the receiver said were lost, how long the blast took and how long
+ * the control round trip took. Loss-free rounds raise the rate (doubling
+ * until the first loss, then additively); lossy rounds cut it towards the
+ * rate the receiver actually absorbed, as in the original RBUDP rate
+ * estimation. The burst size follows the bandwidth-delay product so each
+ * control round trip is amortised over enough data.
+ */
+public class RateController {
+    private static final double LOSS_THRESHOLD = 0.01;   // Loss ratio tolerated before backing off
+    private static final long MIN_RATE = 1_000_000L;     // 1 Mbit/s
+    private static final long MAX_RATE = 100_000_000_000L; // 100 Gbit/s
+    private static final int MIN_BURST = 32;
+    private static final int MAX_BURST = 16384;
+    private static final double RTT_GAIN = 0.125;        // EWMA weight of a new RTT sample
+    private static final int MIN_SAMPLE = 16;            // Smaller rounds say too little about loss
+
+    private final int packetBytes;
+    private long rate;
+    private int burstSize;
+    private boolean probing = true;  // Multiplicative increase until the first loss
+    private long smoothedRtt = 0;
+    private double lastLoss = 0;
+
+    /**
+     * Creates a controller.
+     *
+     * @param initialRate The starting blast rate in bits per second
+     * @param initialBurst The starting burst size in packets
+     * @param packetBytes The size of a full datagram in bytes
+     */
+    public RateController(long initialRate, int initialBurst, int packetBytes) {
+        this.rate = clamp(initialRate, MIN_RATE, MAX_RATE);
+        this.burstSize = (int) clamp(initialBurst, MIN_BURST, MAX_BURST);
+        this.packetBytes = packetBytes;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public double getLastLoss() {
+        return lastLoss;
+    }
+
+    /**
+     * Feeds the outcome of one blast and NACK round into the controller.
+     *
+     * @param sent The number of packets blasted in the round
+     * @param lost The number of packets the receiver reported missing
+     * @param blastNanos How long the blast took
+     * @param rttNanos How long the sequence list / NACK exchange took
+     */
+    public void onRound(int sent, int lost, long blastNanos, long rttNanos) {
+        if (sent == 0) {
+            return;
+        }
+        smoothedRtt = smoothedRtt == 0 ? rttNanos : (long) (smoothedRtt + RTT_GAIN * (rttNanos - smoothedRtt));
+        if (sent < MIN_SAMPLE) {
+            return;
+        }
+        lastLoss = (double) lost / sent;
+
+        // Rate the blast actually ran at, and the part of it that got through
+        double sentRate = blastNanos > 0 ? sent * (double) packetBytes * 8e9 / blastNanos : rate;
+        double deliveredRate = sentRate * (1 - lastLoss);
+
+        if (lastLoss > LOSS_THRESHOLD) {
+            probing = false;
+            long cut = (long) (rate * Math.max(0.5, 1 - lastLoss));
+            rate = clamp(Math.max(cut, (long) (deliveredRate * 0.9)), MIN_RATE, rate);
+            burstSize = (int) clamp(burstSize * 3 / 4, MIN_BURST, MAX_BURST);
+            return;
+        }
+
+        // Only grow when the blast could actually keep up with the current target
+        if (sentRate >= rate * 0.8) {
+            long step = probing ? rate : Math.max(MIN_RATE, rate / 20);
+            rate = clamp(rate + step, MIN_RATE, MAX_RATE);
+        }
+
+        // Size bursts so one blast lasts at least a round trip at the new rate
+        long bdpPackets = (long) (rate / 8e9 * smoothedRtt / packetBytes);
+        burstSize = (int) clamp(Math.max(burstSize, bdpPackets), MIN_BURST, MAX_BURST);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,412 @@
+//Bounded reassembly window that gathers packets into contiguous runs before writing them
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-combining stage in front of the receiver's PacketWriter.
+ * The sequence space is cut into blocks of blockPackets packets. A packet
+ * is copied into the slot of its block, and once every packet of a block
+ * is there the block goes to disk in one positional write instead of one
+ * per packet. Each block tracks what it holds as a set of sorted runs, so
+ * holes left by loss or reordering cost nothing until the block is written.
+ * <p>
+ * At most maxBlocks blocks are held, which bounds the window's memory no
+ * matter how the packets are reordered. When a packet needs a block and
+ * the window is full, the lowest block is written out as the runs it has
+ * and its holes are filled later by single writes; packets below every
+ * held block are written straight away. getCredit tells the sender how
+ * many packets fit before that starts, so it can hold back new packets.
+ * <p>
+ * Packets in the window are not on disk yet: readPacket finds them in the
+ * window first. Each run is marked in the stored bitmap only once its write
+ * has returned, so that bitmap, not the received one, is what the journal
+ * may save. The digest is fed from the same slots that were written, so it
+ * checks what went to disk rather than what came off the wire.
+ */
+public class ReassemblyWindow {
+    private final PacketWriter writer;
+    private final PacketBitmap received;
+    private final PacketBitmap stored;
+    private final FileDigest digest;
+    private final int packetSize;
+    private final int totalPackets;
+    private final int blockPackets;
+    private final int maxBlocks;
+
+    private final TreeMap<Integer, Block> blocks = new TreeMap<>();    // By block index
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final ArrayList<Block> writing = new ArrayList<>();    // Taken out of the window, not yet on disk
+
+    // Statistics
+    private long writes;
+    private long packetsWritten;
+    private long evictions;
+
+    /**
+     * One block of the window: a buffer with a slot per packet and the runs
+     * of packets already copied in. Packets of the block that were already
+     * received when it was created, such as those a resumed transfer kept,
+     * are never offered again, so the block is complete once it holds the
+     * rest.
+     */
+    private static final class Block {
+        final int firstSeq;
+        final int packets;
+        final int needed;
+        final ByteBuffer buffer;
+        final RangeSet held;
+
+        Block(int firstSeq, int packets, int needed, ByteBuffer buffer) {
+            this.firstSeq = firstSeq;
+            this.packets = packets;
+            this.needed = needed;
+            this.buffer = buffer;
+            this.held = new RangeSet(packets);
+        }
+    }
+
+    /**
+     * Set of sequence numbers kept as sorted, disjoint [start, end) runs in
+     * two int arrays, so adding a packet allocates nothing.
+     */
+    static final class RangeSet {
+        private final int[] starts;
+        private final int[] ends;
+        private int runs;
+        private int size;
+
+        /**
+         * @param span The number of distinct sequence numbers the set can hold
+         */
+        RangeSet(int span) {
+            starts = new int[(span + 1) / 2];
+            ends = new int[starts.length];
+        }
+
+        /**
+         * Adds a sequence number, joining it to the runs next to it.
+         *
+         * @param seq The sequence number
+         * @return True if it was not in the set yet
+         */
+        boolean add(int seq) {
+            // Index of the first run starting after seq
+            int low = 0;
+            int high = runs;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            int i = low;
+            if (i > 0 && seq < ends[i - 1]) {
+                return false;
+            }
+            boolean joinsLeft = i > 0 && ends[i - 1] == seq;
+            boolean joinsRight = i < runs && starts[i] == seq + 1;
+            if (joinsLeft && joinsRight) {
+                ends[i - 1] = ends[i];
+                System.arraycopy(starts, i + 1, starts, i, runs - i - 1);
+                System.arraycopy(ends, i + 1, ends, i, runs - i - 1);
+                runs--;
+            } else if (joinsLeft) {
+                ends[i - 1]++;
+            } else if (joinsRight) {
+                starts[i]--;
+            } else {
+                System.arraycopy(starts, i, starts, i + 1, runs - i);
+                System.arraycopy(ends, i, ends, i + 1, runs - i);
+                starts[i] = seq;
+                ends[i] = seq + 1;
+                runs++;
+            }
+            size++;
+            return true;
+        }
+
+        boolean contains(int seq) {
+            int low = 0;
+            int high = runs;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ends[mid] <= seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low < runs && starts[low] <= seq;
+        }
+
+        int runs() {
+            return runs;
+        }
+
+        int start(int run) {
+            return starts[run];
+        }
+
+        int end(int run) {
+            return ends[run];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Creates an empty window; block buffers are allocated as they are needed.
+     *
+     * @param writer Where the packets end up
+     * @param received The packets already received, whose copies are dropped
+     * @param stored The packets written to the file, marked as the window writes them
+     * @param digest The receiver's digest, fed with each packet the window writes
+     * @param packetSize The number of payload bytes per packet
+     * @param totalPackets The number of packets in the transfer
+     * @param windowBytes The most bytes of packets the window may hold
+     * @param blockBytes The size of a block, and so of most writes
+     */
+    public ReassemblyWindow(PacketWriter writer, PacketBitmap received, PacketBitmap stored, FileDigest digest,
+            int packetSize, int totalPackets, long windowBytes, int blockBytes) {
+        this.writer = writer;
+        this.received = received;
+        this.stored = stored;
+        this.digest = digest;
+        this.packetSize = packetSize;
+        this.totalPackets = totalPackets;
+        this.blockPackets = Math.max(1, blockBytes / packetSize);
+        int blocksNeeded = (int) ((totalPackets + (long) blockPackets - 1) / blockPackets);
+        this.maxBlocks = (int) Math.max(1, Math.min(blocksNeeded, windowBytes / ((long) blockPackets * packetSize)));
+    }
+
+    /**
+     * Takes a packet into the window, writing out its block once complete.
+     *
+     * @param seq The sequence number of the packet
+     * @param payload The payload, from its position to its limit; consumed if taken
+     * @return True if the packet was taken or is already stored, false if the caller has to write it
+     * @throws IOException If writing a block fails
+     */
+    public boolean offer(int seq, ByteBuffer payload) throws IOException {
+        int index = seq / blockPackets;
+        while (true) {
+            Block out;
+            boolean taken = false;
+            synchronized (this) {
+                if (received.get(seq)) {
+                    return true;    // A duplicate of a packet already stored
+                }
+                Block block = blocks.get(index);
+                if (block == null) {
+                    if (blocks.size() + writing.size() < maxBlocks) {
+                        block = newBlock(index);
+                        blocks.put(index, block);
+                    } else if (blocks.isEmpty() || index < blocks.firstKey()) {
+                        return false;   // Filling an old hole, or every block is on its way to disk
+                    }
+                }
+                if (block != null) {
+                    if (!block.held.add(seq)) {
+                        return true;
+                    }
+                    block.buffer.put((seq - block.firstSeq) * packetSize, payload, payload.position(),
+                            payload.remaining());
+                    payload.position(payload.limit());
+                    if (block.held.size() < block.needed) {
+                        return true;
+                    }
+                    taken = true;
+                    out = take(index);
+                } else {
+                    // Full: make room by writing out the lowest block, holes and all
+                    out = take(blocks.firstKey());
+                    evictions++;
+                }
+            }
+            writeOut(out);
+            if (taken) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Writes every packet in the window to disk, and waits for blocks that
+     * other threads are writing.
+     *
+     * @throws IOException If a write fails
+     */
+    public void flush() throws IOException {
+        Block[] pending;
+        synchronized (this) {
+            pending = new Block[blocks.size()];
+            int count = 0;
+            while (!blocks.isEmpty()) {
+                pending[count++] = take(blocks.firstKey());
+            }
+        }
+        IOException failure = null;
+        for (Block block : pending) {
+            try {
+                writeOut(block);
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        synchronized (this) {
+            while (!writing.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing the reassembly window", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads back the payload of a stored packet, from the window if it is
+     * still there and from the file otherwise.
+     *
+     * @param seq The sequence number of a packet already marked as received
+     * @param dest The buffer to read into, at its position
+     * @return The number of bytes read
+     * @throws IOException If the read from the file fails
+     */
+    public int readPacket(int seq, ByteBuffer dest) throws IOException {
+        int length = writer.payloadLength(seq);
+        synchronized (this) {
+            Block block = blocks.get(seq / blockPackets);
+            if (block == null || !block.held.contains(seq)) {
+                block = null;
+                for (Block pending : writing) {
+                    if (pending.held.contains(seq)) {
+                        block = pending;
+                        break;
+                    }
+                }
+            }
+            if (block != null) {
+                dest.put(dest.position(), block.buffer, (seq - block.firstSeq) * packetSize, length);
+                dest.limit(dest.position() + length).position(dest.limit());
+                return length;
+            }
+        }
+        return writer.readPacket(seq, dest);
+    }
+
+    /**
+     * Returns how many more packets the window can take before it has to
+     * write out blocks that still have holes.
+     *
+     * @return The number of packets
+     */
+    public synchronized int getCredit() {
+        long credit = (long) (maxBlocks - blocks.size() - writing.size()) * blockPackets;
+        for (Block block : blocks.values()) {
+            credit += block.needed - block.held.size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, credit));
+    }
+
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    public synchronized long getPacketsWritten() {
+        return packetsWritten;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Removes a block from the window so it can be written without the
+     * lock. Callers hold the lock.
+     */
+    private Block take(int index) {
+        Block block = blocks.remove(index);
+        writing.add(block);
+        return block;
+    }
+
+    /**
+     * Creates the block for a block index, counting the packets of its range
+     * that are already stored. Callers hold the lock.
+     */
+    private Block newBlock(int index) {
+        int firstSeq = index * blockPackets;
+        int packets = Math.min(blockPackets, totalPackets - firstSeq);
+        int needed = packets;
+        for (int seq = firstSeq; seq < firstSeq + packets; seq++) {
+            if (received.get(seq)) {
+                needed--;
+            }
+        }
+        return new Block(firstSeq, packets, needed, buffer());
+    }
+
+    private ByteBuffer buffer() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(blockPackets * packetSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes a block taken out of the window and returns its buffer. Runs
+     * without the lock, so readers keep filling other blocks meanwhile.
+     */
+    private void writeOut(Block block) throws IOException {
+        try {
+            write(block);
+        } finally {
+            synchronized (this) {
+                free.push(block.buffer);
+                writing.remove(block);
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(Block block) throws IOException {
+        RangeSet held = block.held;
+        CRC32C crc = new CRC32C();
+        ByteBuffer slot = block.buffer.duplicate();
+        for (int run = 0; run < held.runs(); run++) {
+            int start = held.start(run);
+            int count = held.end(run) - start;
+            slot.limit(slot.capacity()).position((start - block.firstSeq) * packetSize);
+            writer.writePackets(start, count, slot);
+            for (int seq = start; seq < start + count; seq++) {
+                int offset = (seq - block.firstSeq) * packetSize;
+                slot.limit(offset + writer.payloadLength(seq)).position(offset);
+                stored.set(seq);
+                digest.add(seq, DatagramFormat.checksum(crc, seq, slot));
+            }
+            synchronized (this) {
+                writes++;
+                packetsWritten += count;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return maxBlocks + " blocks of " + blockPackets + " packets";
+    }
+}
@@ -0,0 +1,137 @@
+//On-disk record of which packets of a partial file have arrived
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Journal kept beside a partial file so an interrupted RBUDP transfer can be
+ * resumed instead of restarted. It holds the identity of the file being
+ * sent (size, packet size and the sender's fingerprint) and the bitmap of
+ * packets already on disk, as
+ * [magic][fileSize][packetSize][fingerprint][totalPackets][bitmap words][crc].
+ * <p>
+ * A journal is always replaced whole: it is written to a temporary file,
+ * synced and renamed over the old one, and the trailing CRC32C catches
+ * anything torn or corrupted, so a journal that loads can be trusted.
+ * Callers must sync the partial file before saving, so the journal never
+ * claims packets that are not on disk yet.
+ */
+public class ReceiveJournal {
+    private static final int MAGIC = 0x52424A31;   // "RBJ1"
+
+    private final File file;
+
+    /**
+     * Creates a journal for the given file; nothing is read or written yet.
+     *
+     * @param file Where the journal lives
+     */
+    public ReceiveJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Restores the received bitmap if the journal describes the same file.
+     *
+     * @param fileSize The size of the file being sent
+     * @param packetSize The number of payload bytes per packet
+     * @param fingerprint The sender's fingerprint of the file
+     * @param received The bitmap to mark the packets already on disk in
+     * @return True if the journal matched and was loaded, false if there is nothing to resume
+     */
+    public boolean load(long fileSize, int packetSize, long fingerprint, PacketBitmap received) {
+        if (!file.isFile()) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readLong() != fileSize || in.readInt() != packetSize
+                    || in.readLong() != fingerprint || in.readInt() != received.size()) {
+                Log.info("[Journal] " + file.getName() + " belongs to another version of the file, starting over");
+                return false;
+            }
+            long[] words = new long[received.wordCount()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                Log.warn("[Journal] " + file.getName() + " is corrupt, starting over");
+                return false;
+            }
+
+            for (int i = 0; i < words.length; i++) {
+                received.orWord(i, words[i]);
+            }
+            return true;
+        } catch (EOFException e) {
+            Log.warn("[Journal] " + file.getName() + " is truncated, starting over");
+            return false;
+        } catch (IOException e) {
+            Log.warn("[Journal] Could not read " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the journal with the current state of the transfer.
+     *
+     * @param fileSize The size of the file being sent
+     * @param packetSize The number of payload bytes per packet
+     * @param fingerprint The sender's fingerprint of the file
+     * @param received The packets on disk
+     * @throws IOException If the journal cannot be written
+     */
+    public void save(long fileSize, int packetSize, long fingerprint, PacketBitmap received) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream fileOut = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(fileOut, 64 * 1024), crc))) {
+            out.writeInt(MAGIC);
+            out.writeLong(fileSize);
+            out.writeInt(packetSize);
+            out.writeLong(fingerprint);
+            out.writeInt(received.size());
+            for (int i = 0; i < received.wordCount(); i++) {
+                out.writeLong(received.getWord(i));
+            }
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Removes the journal once the file is complete.
+     */
+    public void delete() {
+        if (file.exists() && !file.delete()) {
+            Log.warn("[Journal] Could not delete " + file.getAbsolutePath());
+        }
+    }
+}
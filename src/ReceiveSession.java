@@ -0,0 +1,1195 @@
+//Receives one file over an accepted control connection
+import java.util.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * One file transfer on the receiving side.
+ * A session owns its control connection, its own ephemeral UDP ports and
+ * reader threads, its output file and its received-packet bitmap, so any
+ * number of sessions can run side by side inside one Receiver. Datagrams are
+ * demultiplexed by the port they arrive on; the header carries no session id.
+ * <p>
+ * Datagrams whose checksum does not match are dropped, so they are NACKed
+ * like lost ones, and the checksums of the packets kept build a digest of
+ * the file that is compared with the sender's before the file is renamed
+ * into place.
+ */
+public class ReceiveSession implements Runnable {
+    private static final long RECEIVE_WINDOW_MS = 2000; // Longest wait for a burst's packets
+    private static final int TCP_CHUNK = 1024 * 1024;   // Bytes read from the socket per file write on the TCP path
+    private static final int MAX_PACKET_SIZE = DatagramFormat.MAX_DATAGRAM - XorParity.MAX_OVERHEAD; // Largest payload a parity datagram can cover
+
+    // Adaptive end-of-round detection
+    private static final long MIN_IDLE_NANOS = 2_000_000;   // Never give up on a burst sooner than this
+    private static final long MIN_GRACE_NANOS = 200_000;    // Drain time after an end-of-burst marker
+    private static final int IDLE_GAPS = 8;                 // Idle timeout in mean inter-arrival gaps
+    private static final int RECEIVE_BATCH = 64;            // Datagrams drained per loop iteration
+    private static final long JOURNAL_INTERVAL_NANOS = 1_000_000_000L; // Longest time between journal saves
+    private static final long WINDOW_BYTES = 8L * 1024 * 1024;  // Reassembly window per session
+    private static final int WINDOW_BLOCK_BYTES = 256 * 1024;   // Bytes gathered into one file write
+    private static final int MAX_PARITY_PER_BURST = 1024;       // Parity datagrams kept for one burst
+
+    private final int sessionId;
+    private final File directory;       // Where received files are saved
+    private final TransferListener listener;
+    private final long bufferBudget;    // Most bytes of receive buffers this session may hold
+
+    // TCP communication
+    private final Socket tcpSocket;     // sender's TCP socket
+    private DataInputStream tcpInput;
+    private ControlInput controlInput;  // The buffer under tcpInput
+    private DataOutputStream tcpOutput;
+    private char protocol;
+
+    // UDP communication, one socket and thread per reader
+    private final int readerCount;
+    private int receiveBatch = RECEIVE_BATCH;
+    private UdpReader[] readers;
+    private BufferPool bufferPool;
+    private volatile boolean receiving;
+
+    // Data to get from sender
+    int totalPackets;                   // total number of packets to expect
+    private long fileSize;              // size of the file being sent
+    private int packetSize;
+    private int bundlePackets = 1;      // Most packets the sender packs into one datagram
+    private String saveFileName = "";
+    private FileChannel claimChannel;   // Lock file that keeps other sessions off saveFileName
+    private FileLock claim;
+    private Manifest manifest;          // The files of the transfer, one entry for a single file
+
+    // Receiver state
+    private final AtomicInteger receivedCnt = new AtomicInteger();
+    private final AtomicLong storeFailures = new AtomicLong();  // Packets dropped because writing them failed
+    private ProgressMeter progress;
+    private TransferMetrics metrics;
+    private long transferStart;
+
+    // Round trip estimate: from a control message the sender was waiting on to its next datagram
+    private final AtomicLong rttProbeAt = new AtomicLong();     // nanoTime of that message, 0 when no probe is open
+    private volatile long rttNanos;                             // EWMA of the samples, 0 before the first
+
+    // Packets are gathered into contiguous runs and written to disk in place
+    private PacketWriter packetWriter;
+    private ReassemblyWindow window;
+    private PacketBitmap receivedPackets;
+    private PacketBitmap storedPackets;     // The received packets whose write has returned
+
+    // Lets an interrupted transfer pick up where it stopped
+    private ReceiveJournal journal;
+    private long fingerprint;
+    private long lastCheckpoint;
+
+    // End-to-end check of the whole file
+    private FileDigest digest;
+    private long senderDigest;
+    private byte result = ControlProtocol.OK;
+    private final CRC32C controlCrc = new CRC32C();    // For packets stored by the control thread
+
+    // Parity datagrams waiting for their burst's NACK, when the sender uses FEC; at most
+    // MAX_PARITY_PER_BURST per burst and bufferBudget bytes in all
+    private final ConcurrentSkipListMap<Integer, BurstParity> parities = new ConcurrentSkipListMap<>();
+    private final AtomicLong parityBytes = new AtomicLong();
+    private volatile int nackedBurst = -1;  // Latest burst NACKed; parity for it or earlier comes too late
+    private ByteBuffer rebuildBuffer;
+    private ByteBuffer memberBuffer;
+
+    /**
+     * State of one UDP reader thread. Each reader owns its own socket, and
+     * the sender spreads packets over the readers' ports by sequence number.
+     */
+    private static class UdpReader {
+        final DatagramChannel channel;
+        final Selector selector;        // Woken when the transfer ends so the reader stops at once
+        volatile int markedBurst = -1;  // Highest burst whose end marker arrived on this socket
+        volatile long lastArrival;      // nanoTime of the last datagram
+        volatile long meanGap = 0;      // EWMA of datagram inter-arrival time (ns)
+        long datagrams = 0;             // Data datagrams handled, read once the thread is joined
+        final CRC32C crc = new CRC32C();
+        Inflater inflater;              // Created on the first compressed datagram
+        ByteBuffer inflated;
+        Thread thread;                  // Closes the selector when it ends; null until started
+
+        UdpReader(DatagramChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+        }
+    }
+
+    /**
+     * The parity datagrams kept for one burst. Once its NACK is being
+     * prepared the burst is closed, and parity arriving after that is dropped.
+     */
+    private static class BurstParity {
+        final List<ByteBuffer> datagrams = new ArrayList<>();
+        boolean closed;
+    }
+
+    /**
+     * The buffered control stream, telling how much it has read ahead, so
+     * a TCP transfer can take those bytes before reading the socket directly.
+     */
+    private static class ControlInput extends BufferedInputStream {
+        ControlInput(InputStream in) {
+            super(in);
+        }
+
+        synchronized int buffered() {
+            return count - pos;
+        }
+    }
+
+    /**
+     * Creates a session for a connection the Receiver has just accepted.
+     *
+     * @param sessionId A number identifying the session in log output
+     * @param tcpSocket The sender's control connection, accepted from a ServerSocketChannel
+     * @param directory The directory the file is saved in
+     * @param listener Told about progress and the outcome of the transfer
+     * @param readerCount The number of UDP sockets and reader threads to use
+     * @param bufferBudget The most bytes of datagram buffers the session may allocate
+     */
+    public ReceiveSession(int sessionId, Socket tcpSocket, File directory, TransferListener listener, int readerCount, long bufferBudget) {
+        this.sessionId = sessionId;
+        this.tcpSocket = tcpSocket;
+        this.directory = directory;
+        this.listener = listener;
+        this.readerCount = readerCount;
+        this.bufferBudget = bufferBudget;
+    }
+
+    public void run() {
+        transferStart = System.nanoTime();
+        try {
+            tcpControlHandler();
+            closeTCP();
+            TransferStats stats = saveFile(protocol);
+            Log.info("[Metrics] " + metrics.getJson());
+            listener.onComplete(stats);
+        } catch (IOException e) {
+            closeTCP();
+            listener.onError(saveFileName, e);
+        } finally {
+            if (metrics != null) metrics.finish();
+            releaseName();
+        }
+        Log.info("[Session " + sessionId + "] Finished.");
+    }
+
+    private void tcpControlHandler() throws IOException {
+        try {
+            totalPackets = 0;
+            Log.info("[Session " + sessionId + "] Connected to sender " + tcpSocket.getRemoteSocketAddress());
+
+            tcpOutput = new DataOutputStream(new BufferedOutputStream(tcpSocket.getOutputStream()));
+            controlInput = new ControlInput(tcpSocket.getInputStream());
+            tcpInput = new DataInputStream(controlInput);
+            saveFileName = tcpInput.readUTF();
+            checkName(saveFileName);
+            claimName();
+
+            // Confirm the protocol used, after measuring the path if the sender asks to
+            protocol = tcpInput.readChar();
+            if (protocol == 'P') {
+                PathMtu.answer(tcpInput, tcpOutput);
+                protocol = tcpInput.readChar();
+            }
+            Log.debug("[TCP] Protocol: " + protocol);
+
+            if (protocol == 'T') {
+                handleTCPFileTransfer();
+            } else if (protocol == 'U' || protocol == 'M') {
+                packetSize = tcpInput.readInt();  // Read the packet size
+                Log.debug("[TCP] Packet size: " + packetSize);
+                if (packetSize <= 0 || packetSize > MAX_PACKET_SIZE) {
+                    throw new IOException("Packet size " + packetSize + " does not fit a datagram");
+                }
+                if (protocol == 'M') {
+                    manifest = Manifest.read(tcpInput, packetSize, saveFileName);    // Several files in one sequence space
+                    Log.info("[TCP] Manifest of " + manifest.size() + " files");
+                }
+                handleRBUDPFileTransfer();
+            } else {
+                throw new IOException("Unknown protocol " + protocol);
+            }
+        }
+        catch (IOException e) {
+            Log.error("[Session " + sessionId + "] Transfer of " + saveFileName + " failed", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts only a plain file name, so the file lands directly in the
+     * receive directory and is never the directory itself.
+     */
+    private static void checkName(String name) throws IOException {
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0
+                || name.indexOf('\\') >= 0 || name.indexOf(':') >= 0 || name.indexOf('\0') >= 0) {
+            throw new IOException("Unsafe file name from sender: " + name);
+        }
+    }
+
+    /**
+     * Claims saveFileName for this session with a lock on NAME.partial.lock,
+     * so two transfers of the same name, in this receiver or another process,
+     * cannot truncate each other's partial file and journal. The lock goes
+     * away with the process, so a crash leaves nothing to clean up by hand.
+     *
+     * @throws IOException If another transfer of the same name is running
+     */
+    private void claimName() throws IOException {
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        FileChannel lockChannel = FileChannel.open(new File(directory, saveFileName + ".partial.lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;    // Held by another session of this receiver
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(saveFileName + " is already being received by another transfer");
+        }
+        claimChannel = lockChannel;
+        claim = lock;
+    }
+
+    /**
+     * Gives up the claim on saveFileName, removing the lock file while it
+     * is still held so no other session is holding it at that moment.
+     */
+    private void releaseName() {
+        if (claim == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(new File(directory, saveFileName + ".partial.lock").toPath());
+            claim.release();
+            claimChannel.close();
+        } catch (IOException e) {
+            Log.warn("[Session " + sessionId + "] Could not release " + saveFileName + ": " + e.getMessage());
+        }
+        claim = null;
+    }
+
+    /**
+     * Reads one chunk of a compressed TCP stream, framed as [raw length]
+     * [stored length][bytes], inflating it if it was stored deflated.
+     *
+     * @param wanted The most bytes the file can still take
+     * @return The number of file bytes now in the buffer
+     */
+    private int readChunk(Inflater inflater, byte[] stored, byte[] buffer, int wanted) throws IOException {
+        int rawLength = tcpInput.readInt();
+        int storedLength = tcpInput.readInt();
+        if (rawLength <= 0 || rawLength > wanted || storedLength <= 0 || storedLength > rawLength) {
+            throw new IOException("Invalid chunk of " + storedLength + " bytes for " + rawLength);
+        }
+        if (storedLength == rawLength) {
+            tcpInput.readFully(buffer, 0, rawLength);
+            return rawLength;
+        }
+        tcpInput.readFully(stored, 0, storedLength);
+        long inflateStart = System.nanoTime();
+        PacketCompressor.inflateChunk(inflater, stored, storedLength, buffer, rawLength);
+        metrics.addPhase(TransferMetrics.Phase.COMPRESS, System.nanoTime() - inflateStart);
+        metrics.addCompressed(rawLength - storedLength);
+        return rawLength;
+    }
+
+    /**
+     * Moves the file from the socket to the partial file through one large
+     * direct buffer, so its bytes never enter the JVM heap, and digests
+     * each chunk while it is in hand. Bytes the buffered control stream
+     * already read past the header are written first.
+     *
+     * @return The number of bytes received, short of fileSize if the connection closed
+     */
+    private long receiveDirectTCP(FileChannel fileChannel, long fileSize) throws IOException {
+        long position = 0;
+        int buffered = (int) Math.min(controlInput.buffered(), fileSize);
+        if (buffered > 0) {
+            byte[] head = new byte[buffered];
+            tcpInput.readFully(head);
+            digest.update(head, 0, buffered);
+            fileChannel.write(ByteBuffer.wrap(head), 0);
+            position = buffered;
+        }
+        SocketChannel channel = tcpSocket.getChannel();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(TCP_CHUNK);
+        while (position < fileSize) {
+            chunk.clear().limit((int) Math.min(TCP_CHUNK, fileSize - position));
+            while (chunk.hasRemaining() && channel.read(chunk) >= 0) {
+                // Fill the chunk so each write covers the whole buffer
+            }
+            chunk.flip();
+            if (!chunk.hasRemaining()) {
+                break;      // The sender closed the connection
+            }
+            digest.update(chunk.duplicate());
+            long writeStart = System.nanoTime();
+            while (chunk.hasRemaining()) {
+                position += fileChannel.write(chunk, position);
+            }
+            metrics.addPhase(TransferMetrics.Phase.WRITE, System.nanoTime() - writeStart);
+            progress.update(position);
+        }
+        return position;
+    }
+
+    private long receiveCompressedTCP(FileChannel fileChannel, long fileSize) throws IOException {
+        byte[] buffer = new byte[PacketCompressor.CHUNK_SIZE];
+        byte[] stored = new byte[PacketCompressor.CHUNK_SIZE];
+        Inflater inflater = new Inflater(true);
+        long totalReceived = 0;
+        try {
+            while (totalReceived < fileSize) {
+                int bytesRead = readChunk(inflater, stored, buffer, (int) Math.min(buffer.length, fileSize - totalReceived));
+                digest.update(buffer, 0, bytesRead);
+                long writeStart = System.nanoTime();
+                fileChannel.write(ByteBuffer.wrap(buffer, 0, bytesRead));
+                metrics.addPhase(TransferMetrics.Phase.WRITE, System.nanoTime() - writeStart);
+                totalReceived += bytesRead;
+                progress.update(totalReceived);
+            }
+        } finally {
+            inflater.end();
+        }
+        return totalReceived;
+    }
+
+    private void handleTCPFileTransfer() throws IOException {
+        long fileSize = tcpInput.readLong();  // Sender sends file size
+        boolean compressed = tcpInput.readBoolean();
+        Log.info("[TCP] Expected file size: " + fileSize + " bytes" + (compressed ? ", compressed" : ""));
+        progress = new ProgressMeter("TCP", saveFileName, fileSize, listener);
+        metrics = new TransferMetrics("receiver", saveFileName, fileSize);
+        metrics.register();
+
+        digest = FileDigest.forStream(fileSize);
+        long totalReceived;
+        try (FileChannel fileChannel = FileChannel.open(partialFile().toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            totalReceived = compressed
+                    ? receiveCompressedTCP(fileChannel, fileSize)
+                    : receiveDirectTCP(fileChannel, fileSize);
+        }
+
+        Log.info("[TCP] File transfer complete. Total received: " + totalReceived + " bytes");
+        if (totalReceived < fileSize) {
+            throw new IOException("Connection closed after " + totalReceived + " of " + fileSize + " bytes");
+        }
+
+        // The sender follows the data with its digest and waits for ours
+        digest.finish();
+        ControlProtocol.Frame done = ControlProtocol.readFrame(tcpInput);
+        if (done.type != ControlProtocol.DONE) {
+            throw new IOException("Expected the sender's done frame, got type " + done.type);
+        }
+        senderDigest = done.digest;
+        result = senderDigest == digest.getValue() ? ControlProtocol.OK : ControlProtocol.DIGEST_MISMATCH;
+        ControlProtocol.writeResult(tcpOutput, result, digest.getValue());
+    }
+
+    private void handleRBUDPFileTransfer() throws IOException {
+        try {
+            totalPackets = tcpInput.readInt();
+            fileSize = tcpInput.readLong();
+            fingerprint = tcpInput.readLong();
+            bundlePackets = tcpInput.readInt();
+            if (bundlePackets < 1 || bundlePackets > DatagramFormat.maxBundlePackets(packetSize)) {
+                throw new IOException("Bundles of " + bundlePackets + " packets do not fit a datagram");
+            }
+            Log.info("[TCP] Total packets expected: " + totalPackets + " (" + fileSize + " bytes)");
+            boolean batch = manifest != null;
+            if (!batch) {
+                if (fileSize < 0) {
+                    throw new IOException("Negative file size " + fileSize);
+                }
+                manifest = new Manifest(new String[] {saveFileName}, new long[] {fileSize}, packetSize);
+            }
+            if (totalPackets != manifest.getTotalPackets() || fileSize != manifest.getTotalBytes()) {
+                throw new IOException(totalPackets + " packets cannot hold " + fileSize + " bytes");
+            }
+            progress = new ProgressMeter("UDP", saveFileName, totalPackets, listener);
+            metrics = new TransferMetrics("receiver", saveFileName, fileSize);
+            metrics.register();
+
+            // Packets go into partial files, which keep what an earlier attempt left behind
+            File[] partials = partialFiles();
+            boolean partialsKept = true;
+            for (int i = 0; i < partials.length; i++) {
+                partialsKept &= partials[i].isFile() && partials[i].length() == manifest.getSize(i);
+            }
+            journal = new ReceiveJournal(new File(directory, saveFileName + ".partial.journal"));
+            receivedPackets = new PacketBitmap(totalPackets);
+            boolean resumed = partialsKept && journal.load(fileSize, packetSize, fingerprint, receivedPackets);
+            if (!resumed) {
+                receivedPackets = new PacketBitmap(totalPackets);
+            }
+            storedPackets = receivedPackets.copy();
+            receivedCnt.set(receivedPackets.cardinality());
+            if (resumed) {
+                Log.info("[Journal] Resuming " + saveFileName + " with " + receivedCnt.get() + " of "
+                        + totalPackets + " packets already on disk");
+            }
+            packetWriter = batch ? new PacketWriter(manifest, partials, resumed)
+                    : new PacketWriter(partials[0], fileSize, packetSize, resumed);
+            lastCheckpoint = System.nanoTime();
+            digest = new FileDigest(totalPackets);
+            if (resumed) {
+                digestResumed();
+            }
+            window = new ReassemblyWindow(packetWriter, receivedPackets, storedPackets, digest, packetSize,
+                    totalPackets, WINDOW_BYTES, WINDOW_BLOCK_BYTES);
+            Log.debug("[Window] Reassembly window of " + window);
+
+            // Every session gets its own free ports, which is what keeps concurrent transfers apart
+            readers = new UdpReader[readerCount];
+            for (int i = 0; i < readerCount; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(0));
+                channel.configureBlocking(false);
+                readers[i] = new UdpReader(channel);
+            }
+
+            // Shrink the receive batch rather than exceed the session's share of memory
+            int datagramSize = XorParity.maxDatagramSize(packetSize);
+            if (bundlePackets > 1) {
+                datagramSize = Math.max(datagramSize, DatagramFormat.bundleSize(bundlePackets, packetSize));
+            }
+            receiveBatch = (int) Math.max(1, Math.min(RECEIVE_BATCH, bufferBudget / ((long) readerCount * datagramSize)));
+            bufferPool = new BufferPool(receiveBatch * readerCount, datagramSize);
+
+            // Tell the sender where to blast; it waits for this before the first burst
+            tcpOutput.writeInt(readerCount);
+            for (UdpReader reader : readers) {
+                int port = ((InetSocketAddress) reader.channel.getLocalAddress()).getPort();
+                tcpOutput.writeInt(port);
+                Log.info("[UDP] Session " + sessionId + " listening on port " + port);
+            }
+            ControlProtocol.writeResume(tcpOutput, receivedPackets);
+            rttProbeAt.set(System.nanoTime());  // The sender blasts once it has the resume list
+
+            // Datagrams are taken off the sockets by their own threads, so later
+            // bursts keep arriving while earlier ones are being NACKed
+            receiving = true;
+            Thread[] udpThreads = new Thread[readerCount];
+            for (int i = 0; i < readerCount; i++) {
+                UdpReader reader = readers[i];
+                udpThreads[i] = new Thread(() -> receiveUDPPackets(reader), "rbudp-receive-" + sessionId + "-" + i);
+                reader.thread = udpThreads[i];
+                udpThreads[i].start();
+            }
+
+            while (true) {
+                long waitStart = System.nanoTime();
+                ControlProtocol.Frame frame = ControlProtocol.readFrame(tcpInput);
+                long frameAt = System.nanoTime();
+                metrics.addPhase(TransferMetrics.Phase.CONTROL_WAIT, frameAt - waitStart);
+
+                if (frame.type == ControlProtocol.DONE) {
+                    Log.debug("[TCP] Transfer complete.");
+                    senderDigest = frame.digest;
+                    break;
+                }
+
+                if (frame.type != ControlProtocol.SEQ_LIST) {
+                    throw new IOException("Unexpected control frame type " + frame.type);
+                }
+
+                awaitBurst(frame.burstId, frame.seqs, frameAt);
+                metrics.addPhase(TransferMetrics.Phase.RECEIVE_WAIT, System.nanoTime() - frameAt);
+                nackedBurst = frame.burstId;
+                if (!parities.isEmpty()) {
+                    recoverFromParity(frame.burstId);
+                }
+                int[] missingPackets = findMissingPackets(frame.seqs);
+                metrics.recordRound(frame.seqs.length, missingPackets.length, -1);
+                ControlProtocol.writeNack(tcpOutput, frame.burstId, missingPackets, window.getCredit());
+                openRttProbe();
+                Log.debug("[TCP] Sent NACK list of " + missingPackets.length + " packets for burst " + frame.burstId);
+                if (System.nanoTime() - lastCheckpoint >= JOURNAL_INTERVAL_NANOS) {
+                    checkpoint();
+                }
+            }
+
+            receiving = false;
+            for (int i = 0; i < readerCount; i++) {
+                readers[i].selector.wakeup();
+                udpThreads[i].join();
+                readers[i].channel.close();
+            }
+            window.flush();
+            Log.info("[UDP] UDP reception complete.");
+            if (storeFailures.get() > 1) {
+                Log.warn("[UDP] " + storeFailures.get() + " packets could not be stored and were asked for again");
+            }
+            Log.debug("[Window] Wrote " + window.getPacketsWritten() + " packets in " + window.getWrites()
+                    + " writes, " + window.getEvictions() + " blocks written with holes");
+
+            // Tell the sender whether the file came through whole and intact
+            if (!digest.isComplete()) {
+                result = ControlProtocol.INCOMPLETE;
+            } else if (digest.getValue() != senderDigest) {
+                result = ControlProtocol.DIGEST_MISMATCH;
+            }
+            ControlProtocol.writeResult(tcpOutput, result, digest.getValue());
+
+        } catch (IOException | InterruptedException e) {
+            receiving = false;
+            if (packetWriter != null) {
+                try {
+                    checkpoint();
+                    packetWriter.close();
+                    Log.info("[Journal] Kept " + receivedCnt.get() + " of " + totalPackets + " packets of "
+                            + saveFileName + " for a resumed transfer");
+                } catch (IOException journalError) {
+                    Log.warn("[Journal] Could not keep " + saveFileName + " for a resumed transfer", journalError);
+                }
+            }
+            if (readers != null) {
+                for (UdpReader reader : readers) {
+                    try {
+                        if (reader != null) {
+                            reader.channel.close();
+                            if (reader.thread == null) {
+                                reader.selector.close();
+                            } else {
+                                reader.selector.wakeup();
+                            }
+                        }
+                    } catch (IOException closeError) {
+                        Log.warn("[UDP] Could not close a receive socket", closeError);
+                    }
+                }
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * Waits until every packet of a burst has arrived or the round is judged
+     * over. A round ends early once the burst's end-of-burst marker (or a
+     * later one) has arrived and the socket has drained, or when no datagram
+     * has arrived for several mean inter-arrival gaps. RECEIVE_WINDOW_MS is
+     * only an upper bound.
+     * <p>
+     * The idle clock only starts once something of the burst has shown up,
+     * since a sequence list can overtake its datagrams by up to about a round
+     * trip. Drain and idle times are at least a quarter of the measured round
+     * trip, the reordering window TCP's RACK uses, so packets held back a
+     * little on the path are not taken for lost.
+     *
+     * @param burstId The burst to wait for
+     * @param burstSeqs The packets the sender blasted in it
+     * @param listedAt When its sequence list arrived
+     */
+    private void awaitBurst(int burstId, int[] burstSeqs, long listedAt) {
+        long deadline = listedAt + RECEIVE_WINDOW_MS * 1_000_000;
+        long startedAt = 0;     // When the first packet or marker of the burst was seen
+        int next = 0;
+        while (next < burstSeqs.length) {
+            int seq = burstSeqs[next];
+            if (seq < 0 || seq >= totalPackets || receivedPackets.get(seq)) {
+                next++;
+                if (startedAt == 0 && seq >= 0 && seq < totalPackets) {
+                    startedAt = System.nanoTime();
+                }
+                continue;
+            }
+
+            // A burst is only fully marked once its marker came through every socket
+            long lastArrival = 0;
+            long gap = 0;
+            int marked = Integer.MAX_VALUE;
+            for (UdpReader reader : readers) {
+                lastArrival = Math.max(lastArrival, reader.lastArrival);
+                gap = Math.max(gap, reader.meanGap);
+                marked = Math.min(marked, reader.markedBurst);
+            }
+
+            long now = System.nanoTime();
+            if (startedAt == 0 && marked >= burstId) {
+                startedAt = now;
+            }
+            long rtt = rttNanos;
+            long window = RECEIVE_WINDOW_MS * 1_000_000;
+            long idleTimeout = Math.min(Math.max(Math.max(IDLE_GAPS * gap, MIN_IDLE_NANOS), rtt / 4), window);
+            long grace = Math.min(Math.max(Math.max(2 * gap, MIN_GRACE_NANOS), rtt / 4), window);
+            if (now >= deadline) {
+                return;
+            }
+            if (startedAt == 0) {
+                // Nothing of the burst yet: its datagrams may still be behind the sequence list
+                if (now - listedAt >= idleTimeout + rtt) {
+                    return;
+                }
+            } else {
+                long idle = now - Math.max(lastArrival, startedAt);
+                if (idle >= idleTimeout || (marked >= burstId && idle >= grace)) {
+                    return;
+                }
+            }
+            LockSupport.parkNanos(Math.min(grace, 100_000));
+        }
+    }
+
+    /**
+     * Starts a round trip sample after a NACK, if the link has gone quiet:
+     * the sender is then waiting for the NACK and its next datagram closes
+     * the sample. While other bursts are still arriving the sample would
+     * only measure how busy the link is, so none is taken.
+     */
+    private void openRttProbe() {
+        long lastArrival = 0;
+        for (UdpReader reader : readers) {
+            lastArrival = Math.max(lastArrival, reader.lastArrival);
+        }
+        long now = System.nanoTime();
+        if (now - lastArrival >= MIN_GRACE_NANOS) {
+            rttProbeAt.set(now);
+        }
+    }
+
+    /**
+     * Ends the open round trip sample with the datagram that just arrived;
+     * only the first reader to get there counts it.
+     */
+    private void closeRttProbe(long arrival) {
+        long probe = rttProbeAt.getAndSet(0);
+        if (probe != 0 && arrival > probe) {
+            long sample = Math.min(arrival - probe, RECEIVE_WINDOW_MS * 1_000_000);
+            long rtt = rttNanos;
+            rttNanos = rtt == 0 ? sample : rtt + (sample - rtt) / 8;
+        }
+    }
+
+    private void receiveUDPPackets(UdpReader reader) {
+        // Payloads go straight from pooled buffers to disk, nothing is allocated per datagram
+        DatagramChannel udpChannel = reader.channel;
+        ByteBuffer[] batch = new ByteBuffer[receiveBatch];
+        for (int i = 0; i < receiveBatch; i++) {
+            batch[i] = bufferPool.acquire();
+        }
+        reader.lastArrival = System.nanoTime();
+        long allocStart = AllocationMeter.threadAllocatedBytes();
+        long handled = 0;
+
+        try (Selector selector = reader.selector) {
+            udpChannel.register(selector, SelectionKey.OP_READ);
+            while (receiving) {
+                // Drain everything the socket has queued before blocking again
+                int count = 0;
+                while (count < receiveBatch) {
+                    ByteBuffer buffer = batch[count];
+                    buffer.clear();
+                    if (udpChannel.receive(buffer) == null) {
+                        break;
+                    }
+                    buffer.flip();
+                    count++;
+                }
+                if (count == 0) {
+                    // Nothing queued, wait until data arrives or the transfer ends
+                    selector.select(500);
+                    selector.selectedKeys().clear();
+                    continue;
+                }
+
+                long arrival = System.nanoTime();
+                if (rttProbeAt.get() != 0) {
+                    closeRttProbe(arrival);
+                }
+                // Pauses between rounds are not inter-arrival gaps, so cap the sample
+                long gap = Math.min((arrival - reader.lastArrival) / count, MIN_IDLE_NANOS);
+                reader.meanGap = reader.meanGap == 0 ? gap : reader.meanGap + (gap - reader.meanGap) / 8;
+                reader.lastArrival = arrival;
+
+                long batchBytes = 0;
+                for (int i = 0; i < count; i++) {
+                    batchBytes += batch[i].remaining();
+                    handleDatagram(reader, batch[i]);
+                }
+                metrics.addPhase(TransferMetrics.Phase.WRITE, System.nanoTime() - arrival);
+                metrics.addDatagrams(count, batchBytes);
+                handled += count;
+                reader.datagrams += count;
+            }
+        } catch (IOException e) {
+            if (receiving) {
+                Log.error("[UDP] " + Thread.currentThread().getName() + " stopped receiving", e);
+            }
+        } finally {
+            for (ByteBuffer buffer : batch) {
+                bufferPool.release(buffer);
+            }
+            if (reader.inflater != null) {
+                reader.inflater.end();
+            }
+        }
+        Log.info("[UDP] " + Thread.currentThread().getName() + " allocation: "
+                + AllocationMeter.perPacket(AllocationMeter.threadAllocatedBytes() - allocStart, handled));
+    }
+
+    private void handleDatagram(UdpReader reader, ByteBuffer datagram) {
+        if (!DatagramFormat.verify(reader.crc, datagram)) {
+            // Dropped like a lost packet, so the NACK asks for it again
+            metrics.addCorrupt();
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("[UDP] Discarded corrupt datagram of " + datagram.remaining() + " bytes");
+            }
+            return;
+        }
+        int seqNum = datagram.getInt(0);
+        if (seqNum == DatagramFormat.END_OF_BURST && datagram.remaining() >= DatagramFormat.MARKER_SIZE) {
+            reader.markedBurst = Math.max(reader.markedBurst, datagram.getInt(DatagramFormat.HEADER_SIZE));
+            return;
+        }
+        if (seqNum == DatagramFormat.PARITY && datagram.remaining() >= XorParity.HEADER_SIZE) {
+            keepParity(datagram);
+            return;
+        }
+        if (seqNum == DatagramFormat.COMPRESSED && datagram.remaining() > DatagramFormat.COMPRESSED_HEADER_SIZE) {
+            storeCompressed(reader, datagram, 0, datagram.limit());
+            return;
+        }
+        if (seqNum == DatagramFormat.BUNDLE && datagram.remaining() >= DatagramFormat.BUNDLE_HEADER_SIZE) {
+            unbundle(reader, datagram);
+            return;
+        }
+        storeData(reader, seqNum, datagram, 0, datagram.limit());
+    }
+
+    /**
+     * Stores the packets of a bundle. The bundle's checksum covers them
+     * all, and each keeps the checksum of its own datagram for the digest.
+     */
+    private void unbundle(UdpReader reader, ByteBuffer datagram) {
+        int count = datagram.getInt(DatagramFormat.HEADER_SIZE);
+        int limit = datagram.limit();
+        int offset = DatagramFormat.BUNDLE_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int length = offset + 4 <= limit ? datagram.getInt(offset) : -1;
+            offset += 4;
+            if (length < DatagramFormat.HEADER_SIZE || length > limit - offset) {
+                metrics.addInvalid();
+                return;
+            }
+            int seqNum = datagram.getInt(offset);
+            if (seqNum == DatagramFormat.COMPRESSED && length > DatagramFormat.COMPRESSED_HEADER_SIZE) {
+                storeCompressed(reader, datagram, offset, length);
+            } else {
+                storeData(reader, seqNum, datagram, offset, length);
+            }
+            datagram.limit(limit);
+            offset += length;
+        }
+    }
+
+    /**
+     * Stores a plain data packet.
+     *
+     * @param datagram The buffer holding the packet's datagram
+     * @param offset Where in the buffer the datagram starts
+     * @param length The datagram's length
+     */
+    private void storeData(UdpReader reader, int seqNum, ByteBuffer datagram, int offset, int length) {
+        if (seqNum < 0 || seqNum >= totalPackets) {
+            metrics.addInvalid();
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("[UDP] Discarded packet with invalid SeqNum: " + seqNum);
+            }
+            return;
+        }
+
+        if (!receivedPackets.get(seqNum)) {
+            datagram.limit(offset + length).position(offset + DatagramFormat.HEADER_SIZE);
+            try {
+                storePacket(seqNum, datagram, reader.crc);
+            } catch (IOException e) {
+                storeFailed(seqNum, e);
+                return;
+            }
+            if (Log.tracePacket(seqNum)) {
+                Log.trace("[UDP] Received packet SeqNum: " + seqNum);
+            }
+        } else {
+            metrics.addDuplicate();
+            if (Log.tracePacket(seqNum)) {
+                Log.trace("[UDP] Discarded duplicate packet SeqNum: " + seqNum);
+            }
+        }
+    }
+
+    /**
+     * Inflates and stores a compressed data packet. The digest gets the
+     * checksum of the inflated payload, the same one the sender added.
+     *
+     * @param datagram The buffer holding the packet's datagram
+     * @param offset Where in the buffer the datagram starts
+     * @param length The datagram's length
+     */
+    private void storeCompressed(UdpReader reader, ByteBuffer datagram, int offset, int length) {
+        int seqNum = datagram.getInt(offset + DatagramFormat.HEADER_SIZE);
+        if (seqNum < 0 || seqNum >= totalPackets) {
+            metrics.addInvalid();
+            return;
+        }
+        if (receivedPackets.get(seqNum)) {
+            metrics.addDuplicate();
+            return;
+        }
+        if (reader.inflater == null) {
+            reader.inflater = new Inflater(true);
+            reader.inflated = ByteBuffer.allocateDirect(packetSize);
+        }
+        try {
+            datagram.limit(offset + length).position(offset);
+            int payloadLength = PacketCompressor.inflate(reader.inflater, datagram, reader.inflated);
+            if (payloadLength != packetWriter.payloadLength(seqNum)) {
+                metrics.addInvalid();
+                return;
+            }
+            metrics.addCompressed(DatagramFormat.HEADER_SIZE + payloadLength - length);
+            storePacket(seqNum, reader.inflated, reader.crc);
+        } catch (DataFormatException e) {
+            metrics.addInvalid();
+            return;
+        } catch (IOException e) {
+            storeFailed(seqNum, e);
+            return;
+        }
+        if (Log.tracePacket(seqNum)) {
+            Log.trace("[UDP] Received compressed packet SeqNum: " + seqNum);
+        }
+    }
+
+    /**
+     * Keeps a copy of a parity datagram until its burst is NACKed. Parity
+     * for a group that has already arrived whole is not worth keeping, nor
+     * is parity for a burst already NACKed, past its burst's share or past
+     * the session's buffer budget.
+     */
+    private void keepParity(ByteBuffer datagram) {
+        int count = datagram.getInt(XorParity.COUNT_OFFSET);
+        int payloadOffset = XorParity.HEADER_SIZE + 4 * count;
+        if (count < 1 || count > XorParity.MAX_GROUP || datagram.remaining() != payloadOffset + packetSize) {
+            metrics.addInvalid();
+            return;
+        }
+        metrics.addParity(datagram.remaining());
+        for (int i = 0; i < count; i++) {
+            int seq = datagram.getInt(XorParity.HEADER_SIZE + 4 * i);
+            if (seq < 0 || seq >= totalPackets) {
+                metrics.addInvalid();
+                return;
+            }
+            if (!receivedPackets.get(seq)) {
+                int burstId = datagram.getInt(XorParity.BURST_OFFSET);
+                int size = datagram.remaining();
+                if (burstId <= nackedBurst || parityBytes.addAndGet(size) > bufferBudget) {
+                    if (burstId > nackedBurst) {
+                        parityBytes.addAndGet(-size);
+                    }
+                    return;
+                }
+                BurstParity burst = parities.computeIfAbsent(burstId, id -> new BurstParity());
+                synchronized (burst) {
+                    if (!burst.closed && burst.datagrams.size() < MAX_PARITY_PER_BURST) {
+                        ByteBuffer copy = ByteBuffer.allocate(size);
+                        copy.put(datagram.duplicate()).flip();
+                        burst.datagrams.add(copy);
+                        return;
+                    }
+                }
+                parityBytes.addAndGet(-size);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds lost packets from the parity of a burst (and of any earlier
+     * one) before the burst is NACKed. A group missing exactly one packet
+     * gets it back by XORing the parity payload with the members already
+     * stored, in the reassembly window or the file. Parity of later bursts
+     * is kept for their turn.
+     *
+     * @param burstId The burst about to be NACKed
+     */
+    private void recoverFromParity(int burstId) throws IOException {
+        if (rebuildBuffer == null) {
+            rebuildBuffer = ByteBuffer.allocateDirect(packetSize);
+            memberBuffer = ByteBuffer.allocateDirect(packetSize);
+        }
+        List<ByteBuffer> pending = new ArrayList<>();
+        for (Map.Entry<Integer, BurstParity> entry = parities.firstEntry(); entry != null && entry.getKey() <= burstId;
+                entry = parities.firstEntry()) {
+            BurstParity burst = entry.getValue();
+            synchronized (burst) {
+                burst.closed = true;
+                pending.addAll(burst.datagrams);
+            }
+            parities.remove(entry.getKey());
+        }
+        for (ByteBuffer parity : pending) {
+            parityBytes.addAndGet(-parity.capacity());
+            int count = parity.getInt(XorParity.COUNT_OFFSET);
+            int lost = -1;
+            for (int i = 0; i < count; i++) {
+                int seq = parity.getInt(XorParity.HEADER_SIZE + 4 * i);
+                if (!receivedPackets.get(seq)) {
+                    if (lost >= 0) {
+                        lost = -2;  // Two or more missing, XOR parity cannot help
+                        break;
+                    }
+                    lost = seq;
+                }
+            }
+            if (lost < 0) {
+                continue;
+            }
+
+            rebuildBuffer.clear();
+            rebuildBuffer.put(0, parity, XorParity.HEADER_SIZE + 4 * count, packetSize);
+            for (int i = 0; i < count; i++) {
+                int seq = parity.getInt(XorParity.HEADER_SIZE + 4 * i);
+                if (seq != lost) {
+                    memberBuffer.clear();
+                    int length = window.readPacket(seq, memberBuffer);
+                    XorParity.xor(rebuildBuffer, 0, memberBuffer, 0, length);
+                }
+            }
+            rebuildBuffer.limit(packetWriter.payloadLength(lost));
+            storePacket(lost, rebuildBuffer, controlCrc);
+            metrics.addRecovered();
+            if (Log.tracePacket(lost)) {
+                Log.trace("[FEC] Rebuilt packet SeqNum: " + lost);
+            }
+        }
+    }
+
+    private int[] findMissingPackets(int[] allPacketSeqs) {
+        int[] missingPackets = new int[allPacketSeqs.length];
+        int count = 0;
+        for (int seq : allPacketSeqs) {
+            if (seq < 0 || seq >= totalPackets || !receivedPackets.get(seq)) {
+                missingPackets[count++] = seq;
+            }
+        }
+        return Arrays.copyOf(missingPackets, count);
+    }
+
+    /**
+     * Reports a packet that could not be stored. It stays missing, so the
+     * NACK asks for it again; only the first failure is logged, since one
+     * failing disk would otherwise log every datagram.
+     */
+    private void storeFailed(int seqNum, IOException e) {
+        if (storeFailures.getAndIncrement() == 0) {
+            Log.warn("[UDP] Could not store packet SeqNum " + seqNum, e);
+        }
+    }
+
+    /**
+     * Hands a packet to the reassembly window, or writes it directly when the
+     * window does not take it. Either way the digest gets the checksum of
+     * the bytes given to the PacketWriter, once they are written.
+     *
+     * @param crc A checksum instance owned by the calling thread
+     */
+    private void storePacket(int seqNum, ByteBuffer payload, CRC32C crc) throws IOException {
+        // Window and positional writes are safe from several readers; the bitmap settles who counts it
+        if (!window.offer(seqNum, payload)) {
+            int checksum = DatagramFormat.checksum(crc, seqNum, payload);
+            packetWriter.writePacket(seqNum, payload);
+            storedPackets.set(seqNum);
+            digest.add(seqNum, checksum);
+        }
+        if (!receivedPackets.set(seqNum)) {
+            metrics.addDuplicate();  // Another reader stored it first
+            return;
+        }
+
+        progress.update(receivedCnt.incrementAndGet());
+    }
+
+    /**
+     * Adds the packets an earlier attempt left on disk to the digest. They
+     * are not sent again, so this is the one place they are read back.
+     */
+    private void digestResumed() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocateDirect(packetSize);
+        for (int seq = receivedPackets.nextSetBit(0, totalPackets); seq < totalPackets;
+                seq = receivedPackets.nextSetBit(seq + 1, totalPackets)) {
+            payload.clear();
+            int length = packetWriter.readPacket(seq, payload);
+            payload.position(0).limit(length);
+            digest.add(seq, DatagramFormat.checksum(controlCrc, seq, payload));
+        }
+    }
+
+    /**
+     * Writes out the reassembly window, syncs the partial file and then
+     * records what it holds. Readers keep storing packets meanwhile, so the
+     * journal gets the packets whose writes had returned before the sync,
+     * never one that is only in memory.
+     */
+    private void checkpoint() throws IOException {
+        if (window != null) {
+            window.flush();
+        }
+        PacketBitmap synced = storedPackets.copy();
+        packetWriter.force();
+        journal.save(fileSize, packetSize, fingerprint, synced);
+        lastCheckpoint = System.nanoTime();
+    }
+
+    private File partialFile() {
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        return new File(directory, saveFileName + ".partial");
+    }
+
+    private File receivedFile() {
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        return new File(directory, saveFileName);
+    }
+
+    /**
+     * Returns where every file of the manifest is written while it arrives.
+     */
+    private File[] partialFiles() {
+        File[] partials = receivedFiles();
+        for (int i = 0; i < partials.length; i++) {
+            partials[i] = new File(partials[i].getPath() + ".partial");
+        }
+        return partials;
+    }
+
+    /**
+     * Returns where every file of the manifest ends up; manifest paths are
+     * relative and were checked when the manifest was read.
+     */
+    private File[] receivedFiles() {
+        if (!directory.exists()) {
+            directory.mkdir();
+        }
+        File[] files = new File[manifest.size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(directory, manifest.getPath(i));
+        }
+        return files;
+    }
+
+    private TransferStats saveFile(char protocol) throws IOException {
+        File receivedFile = receivedFile();
+        long elapsed = System.nanoTime() - transferStart;
+
+        if (protocol == 'T') {
+            // TCP data was written to the partial file during handleTCPFileTransfer()
+            metrics.finish();
+            checkDigest();
+            Files.move(partialFile().toPath(), receivedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Log.info("[SAVE] TCP file successfully saved: " + receivedFile.getAbsolutePath());
+            return new TransferStats(saveFileName, protocol, receivedFile.length(), 0, 0, 0, elapsed, metrics);
+        }
+
+        // UDP packets were written in place as they arrived, only report holes
+        int missingCount = 0;
+        int missing = receivedPackets.nextClearBit(0, totalPackets);
+        while (missing < totalPackets) {
+            Log.debug("[SAVE] Missing packet " + missing);
+            missingCount++;
+            missing = receivedPackets.nextClearBit(missing + 1, totalPackets);
+        }
+
+        long datagrams = 0;
+        for (UdpReader reader : readers) {
+            datagrams += reader.datagrams;
+        }
+        metrics.finish();
+        TransferStats stats = new TransferStats(saveFileName, protocol, fileSize, totalPackets, datagrams, missingCount,
+                elapsed, metrics);
+
+        // A file with holes must not pass for the real thing; keep it for a resumed transfer
+        if (missingCount > 0) {
+            checkpoint();
+            packetWriter.close();
+            Log.warn("[SAVE] " + missingCount + " packets missing, kept as " + describePartials());
+            throw new IncompleteTransferException(missingCount + " packets never arrived", stats);
+        }
+        packetWriter.close();
+        if (result == ControlProtocol.DIGEST_MISMATCH) {
+            journal.delete();   // The packets on disk cannot be trusted for a resume either
+        }
+        checkDigest();
+        File[] partials = partialFiles();
+        File[] receivedFiles = receivedFiles();
+        for (int i = 0; i < partials.length; i++) {
+            Files.move(partials[i].toPath(), receivedFiles[i].toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        journal.delete();
+        Log.info("[SAVE] UDP " + (receivedFiles.length == 1 ? "file" : receivedFiles.length + " files")
+                + " successfully saved: " + receivedFile.getAbsolutePath());
+        return stats;
+    }
+
+    private String describePartials() {
+        if (manifest == null || manifest.size() == 1) {
+            return partialFile().getAbsolutePath();
+        }
+        return manifest.size() + " .partial files under " + receivedFile().getAbsolutePath();
+    }
+
+    /**
+     * Refuses to rename a file whose digest differs from the sender's; it
+     * stays behind as the partial file.
+     */
+    private void checkDigest() throws IOException {
+        if (result == ControlProtocol.DIGEST_MISMATCH) {
+            Log.error(String.format("[SAVE] File digest mismatch: sender %016x, received %016x, kept as %s",
+                    senderDigest, digest.getValue(), describePartials()));
+            throw new IOException("File digest mismatch for " + saveFileName);
+        }
+        Log.info(String.format("[SAVE] File digest %016x matches the sender's", senderDigest));
+    }
+
+    private void closeTCP() {
+        try {
+            if (tcpInput != null) tcpInput.close();
+            if (tcpOutput != null) tcpOutput.close();
+            tcpSocket.close();
+        } catch (IOException e) {
+            Log.warn("[TCP] Could not close the control connection cleanly", e);
+        }
+    }
+}
@@ -1,275 +1,148 @@
-import java.util.*;
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.nio.ByteBuffer;
-
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Long-running receiver service.
+ * Accepts control connections on the TCP port in a loop and runs every
+ * transfer as its own ReceiveSession on a virtual thread, so many senders can
+ * deliver files at once. A semaphore caps the number of concurrent sessions;
+ * once the cap is reached, further senders wait in the accept backlog.
+ */
 public class Receiver implements Runnable{
     private int tcpPort = 6000;         // This is for TCP control/ACKs
-    private int rbudpPort = 5000;       // This is for UDP data reception
+    private static final int MAX_SESSIONS = 16;                     // Default cap on concurrent transfers
+    private static final long SESSION_BUFFER_BYTES = 8L * 1024 * 1024; // Receive buffers allowed per session
+    private static final int TCP_BUFFER_SIZE = 4 * 1024 * 1024;        // Default SO_RCVBUF of accepted connections
 
-    // TCP communication
-    private ServerSocket tcpServerSocket;
-    private Socket tcpSocket;           // sender's TCP socket
-    private ObjectInputStream tcpInput;
-    private ObjectOutputStream tcpOutput;
-    private char protocol;
+    private ServerSocketChannel tcpServerSocket;
+    private volatile boolean running = true;
+    private int maxSessions = MAX_SESSIONS;
+    private int tcpBufferSize = TCP_BUFFER_SIZE;
+    private Semaphore sessionPermits;
+    private int nextSessionId = 0;
 
-    // UDP communication
-    private DatagramSocket udpSocket;
+    // UDP readers per session
+    private int readerCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
 
-    // Data to get from sender
-    int totalPackets;                   // total number of packets to expect
-    private int packetSize;
-    private String saveFileName = "";
-;
     private String user = "";
+    private File directory;             // Where received files are saved
+    private TransferListener listener;
 
-    // Receiver state
-    private int receivedCnt = 0;
-
-    // Packet buffers
-    private final Map<Integer, byte[]> receivedPackets = Collections.synchronizedMap(new HashMap<>());
-    private final Set<Integer> receivedSequenceNumbers = Collections.synchronizedSet(new HashSet<>());
-
-    private Main main;
-
-    public Receiver(String user, int port, Main main) {
+    public Receiver(String user, int port, TransferListener listener) {
         this.user = user;
-        this.main = main;
+        this.listener = listener;
+        this.directory = new File("./FILES_RECEIVED_" + user);
         // this.rbudpPort = port;
         // this.tcpPort = port + 1000; // TCP port is UDP port + 1000
 
-        System.out.println("[Receiver] Initialized:");
-        System.out.println("User: " + user);
-        System.out.println("[Receiver] Starting...");
-    }
-
-    public void run() {
-        tcpControlHandler();
-        closeTCP();
-        saveFile(protocol);
-    }
-
-    private void tcpControlHandler() {
-        try {
-            totalPackets = 0;  
-            tcpServerSocket = new ServerSocket(tcpPort);
-            System.out.println("[TCP] Listening on port " + tcpPort);
-            tcpSocket = tcpServerSocket.accept();
-            System.out.println("[TCP] Connected to sender.");
-
-            tcpOutput = new ObjectOutputStream(tcpSocket.getOutputStream());
-            tcpInput = new ObjectInputStream(tcpSocket.getInputStream());
-            System.out.println("port number: " + tcpPort);
-            saveFileName = tcpInput.readUTF();
-
-            // Confirm the protocol used
-            protocol = tcpInput.readChar();
-            System.out.println("[TCP] Protocol: " + protocol);
-
-            if (protocol == 'T') {
-                handleTCPFileTransfer();
-            } else if (protocol == 'U') {
-                packetSize = tcpInput.readInt();  // Read the packet size
-                System.out.println("[TCP] Packet size: " + packetSize);
-                handleRBUDPFileTransfer();
-            }
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void handleTCPFileTransfer() {
-        try {
-            long fileSize = tcpInput.readLong();  // Sender sends file size
-            System.out.println("[TCP] Expected file size: " + fileSize + " bytes");
-        
-            File directory = new File("./FILES_RECEIVED_" + user);
-            if (!directory.exists()) {
-                directory.mkdir();
-            }
-            File receivedFile = new File(directory, saveFileName);
-            FileOutputStream fileOutput = new FileOutputStream(receivedFile);
-            // Add the missing code to read the file data
-            byte[] buffer = new byte[packetSize + 4];
-            int bytesRead;
-            long totalReceived = 0;
-            long lastPrintedPercent = 0;
-            // Read data in chunks until we've received the entire file
-            while (totalReceived < fileSize && (bytesRead = tcpInput.read(buffer)) != -1) {
-                fileOutput.write(buffer, 0, bytesRead);
-                totalReceived += bytesRead;
-                // Calculate percent complete to print progress
-                long percent = (totalReceived * 100) / fileSize;
-                if (percent != lastPrintedPercent) {
-                    printProgress(totalReceived, fileSize, "TCP");
-                    lastPrintedPercent = percent;
-                }
-            }
-
-            fileOutput.close();
-            System.out.println("[TCP] File transfer complete. Total received: " + totalReceived + " bytes"); 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        Log.info("[Receiver] Initialized for user " + user);
     }
 
-    private void handleRBUDPFileTransfer() {
-        try {
-            totalPackets = tcpInput.readInt();
-            System.out.println("[TCP] Total packets expected: " + totalPackets);
-    
-            udpSocket = new DatagramSocket(rbudpPort);
-            System.out.println("[UDP] Listening on port " + rbudpPort);
-    
-            boolean done = false;
-    
-            while (!done) {
-                receiveUDPPacketsForBurst();  // Listen for UDP packets in this round
-    
-                @SuppressWarnings("unchecked")
-                List<Integer> allPacketSeqs = (List<Integer>) tcpInput.readObject();
-    
-                if (allPacketSeqs.isEmpty()) {
-                    System.out.println("[TCP] Transfer complete.");
-                    done = true;
-                    break;
-                }
-    
-                List<Integer> missingPackets = findMissingPackets(allPacketSeqs);
-                tcpOutput.writeObject(missingPackets);
-                tcpOutput.flush();
-                System.out.println("[TCP] Sent NACK list: " + missingPackets);
-            }
-    
-            udpSocket.close();
-            System.out.println("[UDP] UDP reception complete.");
-    
-        } catch (Exception e) {
-            System.out.println("[RBUDP] Error during RBUDP transfer: " + e.getMessage());
-            e.printStackTrace();
-        }
+    /**
+     * Sets how many UDP sockets and reader threads each RBUDP transfer uses.
+     *
+     * @param readerCount The number of parallel readers
+     */
+    public void setReaderCount(int readerCount) {
+        this.readerCount = Math.max(1, readerCount);
     }
 
-    private void receiveUDPPacketsForBurst() throws IOException {
-        long endTime = System.currentTimeMillis() + 2000; // Listen for 2 seconds
-        udpSocket.setSoTimeout(500);
-    
-        while (System.currentTimeMillis() < endTime) {
-            byte[] buffer = new byte[packetSize + 4];
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-    
-            try {
-                udpSocket.receive(packet);
-            } catch (SocketTimeoutException e) {
-                // No packet received in timeout, move on
-                continue;
-            }
-    
-            ByteBuffer byteBuffer = ByteBuffer.wrap(packet.getData());
-            int seqNum = byteBuffer.getInt();
-    
-            byte[] dataPayload = new byte[packet.getLength() - 4];
-            byteBuffer.get(dataPayload);
-    
-            if (!receivedSequenceNumbers.contains(seqNum)) {
-                storePacket(seqNum, dataPayload);
-                System.out.println("[UDP] Received packet SeqNum: " + seqNum);
-            } else {
-                System.out.println("[UDP] Discarded duplicate packet SeqNum: " + seqNum);
-            }
-        }
-    }
-    
-    private List<Integer> findMissingPackets(List<Integer> allPacketSeqs) {
-        List<Integer> missingPackets = new ArrayList<>();
-        for (int seq : allPacketSeqs) {
-            if (!receivedSequenceNumbers.contains(seq)) {
-                missingPackets.add(seq);
-            }
-        }
-        return missingPackets;
+    /**
+     * Sets the directory received files are saved in, instead of ./FILES_RECEIVED_user.
+     *
+     * @param directory The directory to save into; created if it does not exist
+     */
+    public void setReceiveDirectory(File directory) {
+        this.directory = directory;
     }
 
-    private void storePacket(int seqNum, byte[] dataPayload) {
-        if (!receivedSequenceNumbers.contains(seqNum)) {
-            receivedSequenceNumbers.add(seqNum);
-            receivedPackets.put(seqNum, dataPayload);
-        }
-
-        receivedCnt++;
-        printProgress(receivedCnt, totalPackets, "UDP");
+    /**
+     * Sets how many transfers may run at the same time. Must be called before run().
+     *
+     * @param maxSessions The most concurrent sessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
     }
-    
-    private void printProgress(long current, long total, String label) {
-        int percent = (int) ((current * 100) / total);
-        int numHashes = (int) ((percent / 100.0) * 50);  // 50-char progress bar
-    
-        StringBuilder progressBar = new StringBuilder();
-        for (int i = 0; i < numHashes; i++) {
-            progressBar.append("#");
-        }
-        for (int i = numHashes; i < 50; i++) {
-            progressBar.append("-");
-        }
 
-        if (percent != 100) {
-            main.updateProgressBar(percent, true);
-        } else {
-            main.updateProgressBar(100, false);
-        }
-    
-        System.out.print("\r[" + label + "] [" + progressBar.toString() + "] " + percent + "%");
-        System.out.flush();
+    /**
+     * Sets the socket receive buffer of accepted connections, which bounds
+     * the TCP window of TCP transfers. The kernel may cap it
+     * (net.core.rmem_max on Linux). Must be called before run().
+     *
+     * @param tcpBufferSize The SO_RCVBUF size in bytes
+     */
+    public void setTcpBufferSize(int tcpBufferSize) {
+        this.tcpBufferSize = Math.max(64 * 1024, tcpBufferSize);
     }
 
-    private void saveFile(char protocol) {
+    public void run() {
         try {
-            File directory = new File("./FILES_RECEIVED_" + user);
-            if (!directory.exists()) {
-                directory.mkdir();
-            }
-
-            File receivedFile = new File(directory, saveFileName);
-
-            if (protocol == 'T') {
-                // TCP file is already saved during handleTCPFileTransfer()
-                System.out.println("[SAVE] TCP file was saved during transfer: " + receivedFile.getAbsolutePath());
-                return;  // No need to rewrite it
+            synchronized (this) {
+                if (!running) return;  // Closed before it got going
+                sessionPermits = new Semaphore(maxSessions);
+                // Accepted sockets inherit the buffer, set before the window scale is agreed
+                tcpServerSocket = ServerSocketChannel.open();
+                tcpServerSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                tcpServerSocket.setOption(StandardSocketOptions.SO_RCVBUF, tcpBufferSize);
+                tcpServerSocket.bind(new InetSocketAddress(tcpPort));
             }
-
-            // UDP File Reassembly
-            FileOutputStream fos = new FileOutputStream(receivedFile);
-            for (int i = 0; i < totalPackets; i++) {
-                byte[] data = receivedPackets.get(i);
-                if (data != null) {
-                    fos.write(data);
-                } else {
-                    System.out.println("[SAVE] WARNING: Missing packet " + i + "!");
+            Log.info("[TCP] Listening on port " + tcpPort + " for up to " + maxSessions + " concurrent transfers");
+            while (running) {
+                // Take a slot before accepting so excess senders queue in the backlog
+                sessionPermits.acquire();
+                SocketChannel tcpSocket;
+                try {
+                    tcpSocket = tcpServerSocket.accept();
+                } catch (IOException e) {
+                    sessionPermits.release();
+                    if (running) {
+                        Log.warn("[TCP] Could not accept a sender", e);
+                    }
+                    continue;
                 }
-            }
-            fos.close();
-            System.out.println("[SAVE] UDP file successfully saved: " + receivedFile.getAbsolutePath());
 
+                int sessionId = nextSessionId++;
+                ReceiveSession session = new ReceiveSession(sessionId, tcpSocket.socket(), directory, listener,
+                        readerCount, SESSION_BUFFER_BYTES);
+                Thread.ofVirtual().name("rbudp-session-" + sessionId).start(() -> {
+                    try {
+                        session.run();
+                    } finally {
+                        sessionPermits.release();
+                    }
+                });
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("[TCP] Stopped accepting transfers", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
         }
     }
 
-
-    private void closeTCP() {
+    /**
+     * Stops accepting transfers and waits for the running ones to finish.
+     */
+    public void close() {
         try {
-            if (tcpInput != null) tcpInput.close();
-            if (tcpOutput != null) tcpOutput.close();
-            if (tcpSocket != null) tcpSocket.close();
-            if (tcpServerSocket != null) tcpServerSocket.close();
+            synchronized (this) {
+                running = false;
+                if (tcpServerSocket != null) tcpServerSocket.close();
+            }
+            if (sessionPermits != null) {
+                sessionPermits.acquire(maxSessions);
+                sessionPermits.release(maxSessions);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("[TCP] Could not close the listening socket", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
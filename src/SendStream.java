@@ -0,0 +1,427 @@
+//One UDP flow of the sender, with its own sockets, buffers and pacer
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+
+/**
+ * A single blasting flow of the RBUDP sender.
+ * A stream owns one transport per receiver port, its own batch of
+ * pooled buffers and its own pacer, so several streams can blast stripes
+ * of the same burst from different threads without sharing any state
+ * except the read-only file mapping.
+ * <p>
+ * With a PacketCompressor set, batches are built and compressed on the
+ * compressor's workers a few batches ahead of the one being blasted, so
+ * compression runs alongside the pacer instead of in front of it.
+ */
+public class SendStream implements AutoCloseable {
+    private static final int SEND_BATCH = 32;   // Datagrams prepared per loop iteration
+    public static final int MAX_BUNDLE = SEND_BATCH;    // Bundles never span batches
+    private static final int MAX_LOOKAHEAD = 3; // Batches compressed ahead of the one being sent
+
+    private final PacketSource packetSource;
+    private final PacketTransport[] transports; // One per receiver reader port
+    private final ByteBuffer[] sendBatch;
+    private final ByteBuffer markerBuffer;
+    private final Pacer pacer;
+    private final TransferMetrics metrics;
+    private final FileDigest digest;
+    private final CRC32C crc = new CRC32C();
+
+    // Forward error correction: XOR of the current group's payloads and its members
+    private final ByteBuffer parityPayload;
+    private final ByteBuffer parityDatagram;
+    private final int[] groupSeqs = new int[XorParity.MAX_GROUP];
+    private int groupCount = 0;
+    private int fecGroup = 0;           // Data packets per parity datagram, 0 for none
+    private int parityCount = 0;        // Parity datagrams sent, spread over the ports
+
+    // Bundling: several datagrams packed into one, sent round-robin over the ports
+    private ByteBuffer bundle;
+    private int bundlePackets = 1;
+    private int bundleCount = 0;
+
+    // Compression: a ring of batches, each built by one worker task at a time
+    private PacketCompressor compressor;
+    private BuildSlot[] buildRing;
+
+    // Allocation bookkeeping, only touched by the thread running the stream
+    private long allocatedBytes = 0;
+    private long packetsSent = 0;
+
+    /**
+     * Sets up the stream's buffers over already opened transports.
+     *
+     * @param packetSource The file being sent
+     * @param transports One transport per receiver UDP reader port, closed with the stream
+     * @param rateBitsPerSecond This stream's share of the blast rate, 0 for unlimited
+     * @param metrics The transfer's metrics, fed with read and blast times
+     * @param digest The transfer's file digest, fed with each packet's checksum
+     */
+    public SendStream(PacketSource packetSource, PacketTransport[] transports, long rateBitsPerSecond,
+            TransferMetrics metrics, FileDigest digest) {
+        int datagramSize = DatagramFormat.HEADER_SIZE + packetSource.getPacketSize();
+        this.packetSource = packetSource;
+        this.metrics = metrics;
+        this.digest = digest;
+        this.pacer = new Pacer(rateBitsPerSecond, datagramSize);
+
+        BufferPool bufferPool = new BufferPool(SEND_BATCH + 1, datagramSize);
+        this.parityPayload = ByteBuffer.allocateDirect(packetSource.getPacketSize());
+        this.parityDatagram = ByteBuffer.allocateDirect(XorParity.maxDatagramSize(packetSource.getPacketSize()));
+        this.sendBatch = new ByteBuffer[SEND_BATCH];
+        for (int i = 0; i < SEND_BATCH; i++) {
+            sendBatch[i] = bufferPool.acquire();
+        }
+        this.markerBuffer = bufferPool.acquire();
+        this.transports = transports;
+    }
+
+    /**
+     * Sets how many data packets share one parity datagram. Takes effect
+     * from the next blast.
+     *
+     * @param fecGroup The group size, or 0 to send no parity
+     */
+    public void setFecGroup(int fecGroup) {
+        this.fecGroup = fecGroup == 0 ? 0 : Math.max(XorParity.MIN_GROUP, Math.min(XorParity.MAX_GROUP, fecGroup));
+    }
+
+    /**
+     * Packs up to the given number of datagrams into each one sent.
+     *
+     * @param bundlePackets The most packets per datagram, at most MAX_BUNDLE and what fits a UDP datagram
+     */
+    public void setBundlePackets(int bundlePackets) {
+        this.bundlePackets = bundlePackets;
+        this.bundle = ByteBuffer.allocateDirect(DatagramFormat.bundleSize(bundlePackets, packetSource.getPacketSize()));
+    }
+
+    /**
+     * Compresses packets on the given compressor's workers from the next
+     * blast on, allocating the batches they build into.
+     *
+     * @param compressor The transfer's compressor
+     */
+    public void setCompressor(PacketCompressor compressor) {
+        int packetSize = packetSource.getPacketSize();
+        int depth = Math.min(compressor.getWorkerCount(), MAX_LOOKAHEAD) + 1;
+        BufferPool datagrams = new BufferPool(depth * SEND_BATCH, DatagramFormat.HEADER_SIZE + packetSize);
+        BufferPool payloads = new BufferPool(depth * SEND_BATCH, packetSize);
+        this.buildRing = new BuildSlot[depth];
+        for (int i = 0; i < depth; i++) {
+            buildRing[i] = new BuildSlot(datagrams, payloads);
+        }
+        this.compressor = compressor;
+    }
+
+    public void setRate(long bitsPerSecond) {
+        pacer.setRate(bitsPerSecond);
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * Blasts the given packets, spreading them over the receiver's ports.
+     * Payloads are sliced from the file mapping as they are sent, so a
+     * retransmission costs no more memory than the first attempt. The
+     * checksum each datagram carries also goes into the file digest. With FEC
+     * on, a parity datagram follows every group of packets, and one more
+     * covers whatever is left at the end.
+     *
+     * @param burstId The id of the burst the packets belong to
+     * @param packetSeqs The packet sequence numbers to send
+     * @return The number of bytes put on the wire
+     * @throws IOException If an I/O error occurs during sending
+     */
+    public long blast(int burstId, int[] packetSeqs) throws IOException {
+        long bytes = 0;
+        long allocStart = AllocationMeter.threadAllocatedBytes();
+
+        if (compressor != null) {
+            bytes += blastCompressed(burstId, packetSeqs);
+        } else {
+            for (int batchStart = 0; batchStart < packetSeqs.length; batchStart += SEND_BATCH) {
+                int batchSize = Math.min(SEND_BATCH, packetSeqs.length - batchStart);
+                long readStart = System.nanoTime();
+
+                // Build the whole batch in pooled buffers, header written in place
+                for (int i = 0; i < batchSize; i++) {
+                    int seq = packetSeqs[batchStart + i];
+                    ByteBuffer buffer = sendBatch[i];
+                    buffer.clear();
+                    buffer.putInt(seq).putInt(0);
+                    packetSource.copyPacket(seq, buffer);
+                    buffer.flip();
+                    digest.add(seq, DatagramFormat.seal(crc, buffer));
+                }
+                metrics.addPhase(TransferMetrics.Phase.READ, System.nanoTime() - readStart);
+                bytes += sendBatch(burstId, packetSeqs, batchStart, batchSize, sendBatch, null);
+            }
+        }
+        if (groupCount > 1) {
+            bytes += sendParity(burstId);
+        }
+        groupCount = 0;
+
+        allocatedBytes += AllocationMeter.threadAllocatedBytes() - allocStart;
+        packetsSent += packetSeqs.length;
+        return bytes;
+    }
+
+    /**
+     * Blasts packets whose batches the compressor's workers build ahead of
+     * time. Each ring slot is refilled with a later batch as soon as it has
+     * been sent.
+     */
+    private long blastCompressed(int burstId, int[] packetSeqs) throws IOException {
+        int batches = (packetSeqs.length + SEND_BATCH - 1) / SEND_BATCH;
+        long bytes = 0;
+        try {
+            for (int batch = 0; batch < Math.min(buildRing.length, batches); batch++) {
+                submitBuild(buildRing[batch], packetSeqs, batch);
+            }
+            for (int batch = 0; batch < batches; batch++) {
+                BuildSlot slot = buildRing[batch % buildRing.length];
+                awaitBuild(slot);
+                int batchStart = batch * SEND_BATCH;
+                int batchSize = Math.min(SEND_BATCH, packetSeqs.length - batchStart);
+                bytes += sendBatch(burstId, packetSeqs, batchStart, batchSize, slot.datagrams, slot.payloads);
+                if (batch + buildRing.length < batches) {
+                    submitBuild(slot, packetSeqs, batch + buildRing.length);
+                }
+            }
+        } finally {
+            // Never hand a slot to the next blast while a worker may still be filling it
+            for (BuildSlot slot : buildRing) {
+                if (slot.pending != null) {
+                    try {
+                        slot.pending.get();
+                    } catch (ExecutionException | InterruptedException e) {
+                        // The blast is failing already
+                    }
+                    slot.pending = null;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private void submitBuild(BuildSlot slot, int[] packetSeqs, int batch) {
+        int batchStart = batch * SEND_BATCH;
+        int batchSize = Math.min(SEND_BATCH, packetSeqs.length - batchStart);
+        slot.pending = compressor.submit(() -> build(slot, packetSeqs, batchStart, batchSize));
+    }
+
+    private void awaitBuild(BuildSlot slot) throws IOException {
+        try {
+            slot.pending.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to build packets", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building packets", e);
+        } finally {
+            slot.pending = null;
+        }
+    }
+
+    /**
+     * Reads and compresses one batch on a compressor worker. A compressed
+     * datagram's own checksum covers the deflated bytes, so the digest gets
+     * the checksum of the raw packet instead, as the receiver computes it
+     * after inflating.
+     */
+    private Void build(BuildSlot slot, int[] packetSeqs, int batchStart, int batchSize) throws IOException {
+        long buildStart = System.nanoTime();
+        for (int i = 0; i < batchSize; i++) {
+            int seq = packetSeqs[batchStart + i];
+            ByteBuffer payload = slot.payloads[i];
+            payload.clear();
+            packetSource.copyPacket(seq, payload);
+            payload.flip();
+            ByteBuffer datagram = slot.datagrams[i];
+            int saved = compressor.build(slot.deflater, seq, payload, datagram);
+            int checksum = DatagramFormat.seal(slot.crc, datagram);
+            if (saved > 0) {
+                metrics.addCompressed(saved);
+                checksum = DatagramFormat.checksum(slot.crc, seq, payload);
+            }
+            digest.add(seq, checksum);
+        }
+        metrics.addPhase(TransferMetrics.Phase.COMPRESS, System.nanoTime() - buildStart);
+        return null;
+    }
+
+    /**
+     * Pushes out a built batch back to back, spread over the receiver's
+     * readers, or packed into bundles when bundling is on.
+     *
+     * @param payloads The raw payloads, when the datagrams may be compressed; null to take them from the datagrams
+     */
+    private long sendBatch(int burstId, int[] packetSeqs, int batchStart, int batchSize, ByteBuffer[] datagrams,
+            ByteBuffer[] payloads) throws IOException {
+        long blastStart = System.nanoTime();
+        long bytes = 0;
+        long batchBytes = 0;
+        int sent = 0;
+        int bundled = 0;
+        if (bundle != null) {
+            bundle.clear().position(DatagramFormat.BUNDLE_HEADER_SIZE);
+        }
+        for (int i = 0; i < batchSize; i++) {
+            int seq = packetSeqs[batchStart + i];
+            ByteBuffer buffer = datagrams[i];
+            int length = buffer.remaining();
+            if (bundle != null) {
+                if (bundled == bundlePackets || bundle.remaining() < 4 + length) {
+                    batchBytes += sendBundle(bundled);
+                    sent++;
+                    bundled = 0;
+                }
+                bundle.putInt(length).put(bundle.position(), buffer, 0, length);
+                bundle.position(bundle.position() + length);
+                bundled++;
+            } else {
+                PacketTransport transport = transports[seq % transports.length];
+                pacer.acquire(length);
+                transport.send(buffer);
+                batchBytes += length;
+                sent++;
+            }
+            if (fecGroup > 0) {
+                bytes += payloads == null
+                        ? addToGroup(burstId, seq, buffer, DatagramFormat.HEADER_SIZE, length - DatagramFormat.HEADER_SIZE)
+                        : addToGroup(burstId, seq, payloads[i], 0, payloads[i].limit());
+            }
+            if (Log.tracePacket(seq)) {
+                Log.trace("[Sender] Sent packet SeqNum: " + seq + " size=" + length + (bundle != null ? " bundled"
+                        : " to=" + transports[seq % transports.length]));
+            }
+        }
+        if (bundled > 0) {
+            batchBytes += sendBundle(bundled);
+            sent++;
+        }
+        metrics.addPhase(TransferMetrics.Phase.BLAST, System.nanoTime() - blastStart);
+        metrics.addDatagrams(sent, batchBytes);
+        return bytes + batchBytes;
+    }
+
+    /**
+     * Seals and sends the bundle filled so far, then starts the next one.
+     *
+     * @return The bytes put on the wire
+     */
+    private int sendBundle(int count) throws IOException {
+        bundle.putInt(0, DatagramFormat.BUNDLE).putInt(8, count).flip();
+        DatagramFormat.seal(crc, bundle);
+        int length = bundle.remaining();
+        pacer.acquire(length);
+        transports[bundleCount++ % transports.length].send(bundle);
+        bundle.clear().position(DatagramFormat.BUNDLE_HEADER_SIZE);
+        return length;
+    }
+
+    /**
+     * Folds a just-sent packet into the current parity group, sending the
+     * parity datagram once the group is full.
+     *
+     * @return The bytes of parity put on the wire, 0 if the group is not full yet
+     */
+    private int addToGroup(int burstId, int seq, ByteBuffer source, int offset, int payloadLength) throws IOException {
+        if (groupCount == 0) {
+            parityPayload.clear();
+            parityPayload.put(0, source, offset, payloadLength);
+            for (int i = payloadLength; i < parityPayload.capacity(); i++) {
+                parityPayload.put(i, (byte) 0);
+            }
+        } else {
+            XorParity.xor(parityPayload, 0, source, offset, payloadLength);
+        }
+        groupSeqs[groupCount++] = seq;
+        if (groupCount < fecGroup) {
+            return 0;
+        }
+        int bytes = sendParity(burstId);
+        groupCount = 0;
+        return bytes;
+    }
+
+    private int sendParity(int burstId) throws IOException {
+        parityDatagram.clear();
+        parityDatagram.putInt(DatagramFormat.PARITY).putInt(0).putInt(burstId).putInt(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            parityDatagram.putInt(groupSeqs[i]);
+        }
+        parityPayload.clear();
+        parityDatagram.put(parityPayload).flip();
+        DatagramFormat.seal(crc, parityDatagram);
+
+        int length = parityDatagram.remaining();
+        pacer.acquire(length);
+        transports[parityCount++ % transports.length].send(parityDatagram);
+        metrics.addParity(length);
+        return length;
+    }
+
+    /**
+     * Sends the end-of-burst marker to every receiver port, since each
+     * reader needs it to know its share of the burst is done.
+     *
+     * @param burstId The id of the burst that was just blasted
+     * @param copies How many times to send the marker to each port
+     * @throws IOException If an I/O error occurs during sending
+     */
+    public void sendMarkers(int burstId, int copies) throws IOException {
+        for (PacketTransport transport : transports) {
+            for (int i = 0; i < copies; i++) {
+                markerBuffer.clear();
+                markerBuffer.putInt(DatagramFormat.END_OF_BURST).putInt(0).putInt(burstId).flip();
+                DatagramFormat.seal(crc, markerBuffer);
+                pacer.acquire(DatagramFormat.MARKER_SIZE);
+                transport.send(markerBuffer);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (PacketTransport transport : transports) {
+            transport.close();
+        }
+        if (buildRing != null) {
+            for (BuildSlot slot : buildRing) {
+                slot.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * One batch of the compression ring, with the codec state of whichever
+     * worker is building it.
+     */
+    private static class BuildSlot {
+        final ByteBuffer[] datagrams = new ByteBuffer[SEND_BATCH];
+        final ByteBuffer[] payloads = new ByteBuffer[SEND_BATCH];
+        final Deflater deflater = PacketCompressor.newDeflater();
+        final CRC32C crc = new CRC32C();
+        Future<Void> pending;
+
+        BuildSlot(BufferPool datagramPool, BufferPool payloadPool) {
+            for (int i = 0; i < SEND_BATCH; i++) {
+                datagrams[i] = datagramPool.acquire();
+                payloads[i] = payloadPool.acquire();
+            }
+        }
+    }
+}
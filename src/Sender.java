@@ -1,229 +1,843 @@
 //Gets file from a client and sends it to the receiver
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
 
 /**
  * Implements the sender portion of the Reliable Blast UDP (RBUDP) protocol.
- * This class is responsible for reading a file, dividing it into packets,
+ * This class is responsible for mapping a file, dividing it into packets,
  * sending the packets in bursts, and handling retransmissions.
  */
 public class Sender {
-    private static final int UDP_PORT = 5000;
     private static final int TCP_PORT = 6000;
     
     private static final int BURST_SIZE = 400; // Number of packets per burst
+    private static final int MAX_RETRIES = 16;  // Retransmissions of one packet before giving up
+    private static final int MARKER_COPIES = 2; // End-of-burst markers sent, in case one is lost
+    private static final int MAX_STREAMS = 16;
+    private static final int FEC_CLEAN_ROUNDS = 4;  // Loss-free rounds before adaptive FEC sends less parity
+    private static final long ADAPTIVE_START_RATE = 100_000_000L; // Starting rate when adapting from unlimited
+    private static final int TCP_BUFFER_SIZE = 4 * 1024 * 1024;     // Default SO_SNDBUF for TCP transfers
+    private static final long ZERO_COPY_CHUNK = 8L * 1024 * 1024;   // Bytes digested and handed to transferTo at once
     
-    private DatagramSocket udpSocket;
+    private SendStream[] streams;       // Parallel UDP flows, one stripe of each burst per stream
+    private ExecutorService streamPool; // Blasts the stripes when there is more than one stream
     private Socket tcpSocket;
-    private ObjectOutputStream tcpOut;
-    private ObjectInputStream tcpIn;
+    private DataOutputStream tcpOut;
+    private DataInputStream tcpIn;
     private String receiverIP;
     private int packetSize = 1000;
+    private long rateBitsPerSecond = 0; // 0 means blast as fast as possible
     private File file;
-    private Map<Integer, byte[]> packets = new HashMap<>();
+    private PacketSource packetSource;
+    private int streamCount = 1;
+    private boolean adaptiveRate = false;
+    private RateController rateController;
+    private int burstSize = BURST_SIZE;
+    private int pipelineDepth = 1;      // Bursts allowed in flight before waiting for a NACK
+    private TransferListener listener = new TransferListener() {
+    };
+    private int abandonedPackets = 0;   // Packets given up on after MAX_RETRIES
+    private ProgressMeter progress;
+    private TransferMetrics metrics;
+    private FileDigest digest;          // Built from the packets' checksums as they are blasted
+    private NetworkImpairment impairment;   // Emulated link in front of the sockets, for testing
+    private int fecGroup = 0;           // Data packets per parity datagram, 0 for no FEC
+    private boolean adaptiveFec = false;
+    private int cleanRounds = 0;        // Consecutive loss-free rounds, for adaptive FEC
+    private boolean compression = false;
+    private PacketCompressor compressor;    // Deflates packets on worker threads while the streams blast
+    private int tcpBufferSize = TCP_BUFFER_SIZE;
+    private boolean probeMtu = false;   // Size packets to the path MTU instead of packetSize
+    private int bundlePackets = 1;      // Packets per datagram, 1 for one each
+    private int receiverCredit = Integer.MAX_VALUE; // New packets the receiver's reassembly window can still take
+    private boolean creditProbed;       // A new packet went out despite zero credit since the last NACK
+
+    // Blast statistics for reporting the achieved rate
+    private long blastBytes = 0;
+    private long blastNanos = 0;
+
+    /**
+     * A burst that has been blasted and whose NACK has not come back yet.
+     */
+    private static class Burst {
+        final int id;
+        final int[] seqs;
+        long blastNanos;
+        long seqListSentAt;
+
+        Burst(int id, int[] seqs) {
+            this.id = id;
+            this.seqs = seqs;
+        }
+    }
 
     /**
      * Constructor for the Sender class.
      * 
      * @param receiverIP The IP address of the receiver
-     * @param file The file to be sent
+     * @param file The file to be sent, or a directory whose files are all sent over RBUDP
      */
     public Sender(String receiverIP, File file, int packetSize) {
+        this(receiverIP, file, packetSize, 0);
+    }
+
+    /**
+     * Constructor for the Sender class with a paced blast rate.
+     * 
+     * @param receiverIP The IP address of the receiver
+     * @param file The file to be sent, or a directory whose files are all sent over RBUDP
+     * @param packetSize The number of payload bytes per packet, or 0 to fit packets to the path MTU
+     * @param rateMbps The target blast rate in megabits per second, 0 for unlimited
+     */
+    public Sender(String receiverIP, File file, int packetSize, int rateMbps) {
         this.receiverIP = receiverIP;
         this.file = file;
-        this.packetSize = packetSize;
+        this.probeMtu = packetSize <= 0;
+        this.packetSize = probeMtu ? this.packetSize : packetSize;
+        this.rateBitsPerSecond = rateMbps * 1_000_000L;
+    }
+
+    /**
+     * Lets the loss seen in each NACK round drive the blast rate and burst size.
+     * The configured rate (or 100 Mbit/s when unlimited) is used as the starting point.
+     * 
+     * @param adaptiveRate True to adapt the rate during the transfer
+     */
+    public void setAdaptiveRate(boolean adaptiveRate) {
+        this.adaptiveRate = adaptiveRate;
+    }
+
+    /**
+     * Sets how many bursts may be in flight before the sender waits for the
+     * oldest one's NACK. A depth of 1 is plain stop-and-wait.
+     * 
+     * @param pipelineDepth The number of unacknowledged bursts allowed
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+    }
+
+    /**
+     * Sets the number of packets per burst. With an adaptive rate this is
+     * only the starting point.
+     * 
+     * @param burstSize The number of packets per burst
+     */
+    public void setBurstSize(int burstSize) {
+        this.burstSize = Math.max(1, burstSize);
+    }
+
+    /**
+     * Turns on forward error correction with a fixed group size: one XOR
+     * parity datagram follows every group of data packets, so the receiver
+     * can rebuild one lost packet per group without a retransmission round.
+     * 
+     * @param fecGroup The number of data packets per parity datagram, 0 to turn FEC off
+     */
+    public void setFecGroup(int fecGroup) {
+        this.fecGroup = fecGroup <= 0 ? 0 : Math.max(XorParity.MIN_GROUP, Math.min(XorParity.MAX_GROUP, fecGroup));
+        this.adaptiveFec = false;
+    }
+
+    /**
+     * Lets the loss left after each round pick the FEC group size. Parity
+     * starts once packets are lost, groups shrink while loss remains and
+     * grow again, up to switching FEC off, while rounds come through clean.
+     * 
+     * @param adaptiveFec True to adapt the amount of parity during the transfer
+     */
+    public void setAdaptiveFec(boolean adaptiveFec) {
+        this.adaptiveFec = adaptiveFec;
+    }
+
+    /**
+     * Compresses packets that shrink enough to be worth it. Each packet is
+     * deflated on its own, so loss and retransmission work as before; over
+     * TCP the stream is compressed in chunks instead.
+     * 
+     * @param compression True to compress on the fly
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Packs several packets into each datagram, so one system call sends
+     * them all. Bundles larger than the path MTU are fragmented by IP and
+     * lost whole if one fragment is, so this suits loopback, jumbo-frame
+     * and clean links. The count is capped to what fits a UDP datagram.
+     * 
+     * @param bundlePackets The most packets per datagram, 1 to send each on its own
+     */
+    public void setBundlePackets(int bundlePackets) {
+        this.bundlePackets = Math.max(1, Math.min(SendStream.MAX_BUNDLE, bundlePackets));
+    }
+
+    /**
+     * Sets the socket send buffer of TCP transfers. The kernel may cap it
+     * (net.core.wmem_max on Linux).
+     * 
+     * @param tcpBufferSize The SO_SNDBUF size in bytes
+     */
+    public void setTcpBufferSize(int tcpBufferSize) {
+        this.tcpBufferSize = Math.max(64 * 1024, tcpBufferSize);
+    }
+
+    /**
+     * Sends every datagram through an emulated link, so loss recovery and
+     * rate control can be measured on a clean link such as loopback.
+     * 
+     * @param impairment The link to send through, or null for the plain sockets
+     */
+    public void setImpairment(NetworkImpairment impairment) {
+        this.impairment = impairment;
+    }
+
+    /**
+     * Sets how many parallel UDP flows blast each burst. Packet seq goes to
+     * stream seq % streamCount, each stream has its own thread, sockets and a
+     * share of the blast rate, while NACKs and retransmissions are still
+     * coordinated over the single TCP control connection.
+     * 
+     * @param streamCount The number of parallel streams, 1 for a single flow
+     */
+    public void setStreamCount(int streamCount) {
+        this.streamCount = Math.max(1, Math.min(MAX_STREAMS, streamCount));
+    }
+
+    /**
+     * Sets the listener that is told about progress and the outcome of the transfer.
+     * 
+     * @param listener The listener to notify
+     */
+    public void setListener(TransferListener listener) {
+        this.listener = listener;
     }
 
     /**
      * Method to send a file using RBUDP protocol.
-     * The file is sent in bursts, with each burst being processed until all packets
-     * in that burst are received before moving to the next burst.
+     * The file is sent in bursts. Up to pipelineDepth bursts are blasted before
+     * the sender blocks on the oldest burst's NACK, and packets reported lost
+     * are merged into the next burst instead of being retried on their own.
+     * New packets are held back while the credit in the receiver's NACKs says
+     * its reassembly window is short of room.
+     * A directory is sent as a manifest of its files, which then share bursts
+     * as if they were one file, so small files cost no extra round trips.
+     * 
+     * @return What the transfer achieved
+     * @throws IOException If the receiver cannot be reached or the transfer breaks off
      */
-    public void sendFileUDP() {
+    public TransferStats sendFileUDP() throws IOException {
+        long transferStart = System.nanoTime();
+        receiverCredit = Integer.MAX_VALUE;
+        creditProbed = false;
         try {
-            udpSocket = new DatagramSocket();
-            System.out.println("receiver IP is " + receiverIP);
+            Log.info("receiver IP is " + receiverIP);
             tcpSocket = new Socket(receiverIP, TCP_PORT);
-            tcpOut = new ObjectOutputStream(tcpSocket.getOutputStream());
-            tcpIn = new ObjectInputStream(tcpSocket.getInputStream());
+            OutputStream control = tcpSocket.getOutputStream();
+            if (impairment != null) {
+                control = impairment.wrapControl(control);  // Sequence lists take the link's delay like the data
+            }
+            tcpOut = new DataOutputStream(new BufferedOutputStream(control));
+            tcpIn = new DataInputStream(new BufferedInputStream(tcpSocket.getInputStream()));
             tcpOut.writeUTF(file.getName());
             tcpOut.flush();
-            tcpOut.writeChar('U');
-            tcpOut.flush();
-            tcpOut.writeInt(packetSize);
+            if (probeMtu) {
+                probePacketSize();
+            }
+            if (file.isDirectory()) {
+                // Every file below the directory goes in one session, laid out in one sequence space
+                Manifest manifest = Manifest.scan(file, packetSize);
+                if (manifest.size() == 0) {
+                    throw new IOException("No files to send in " + file);
+                }
+                File base = file.getAbsoluteFile().getParentFile();
+                File[] files = new File[manifest.size()];
+                for (int i = 0; i < files.length; i++) {
+                    files[i] = new File(base, manifest.getPath(i));
+                }
+                Log.info("Sending " + files.length + " files from " + file);
+                tcpOut.writeChar('M');
+                tcpOut.writeInt(packetSize);
+                manifest.write(tcpOut);
+                packetSource = new PacketSource(manifest, files);
+            } else {
+                tcpOut.writeChar('U');
+                tcpOut.writeInt(packetSize);
+                packetSource = new PacketSource(file, packetSize);
+            }
             tcpOut.flush();
-            readFile();
-            // Define burst limit
-            List<Integer> allPacketSeqs = new ArrayList<>(packets.keySet());
-            tcpOut.writeInt(packets.size()); // Send total packets count to receiver for error check
+            metrics = new TransferMetrics("sender", file.getName(), packetSource.getFileSize());
+            metrics.register();
+            if (adaptiveRate) {
+                long startRate = rateBitsPerSecond > 0 ? rateBitsPerSecond : ADAPTIVE_START_RATE;
+                rateController = new RateController(startRate, burstSize, DatagramFormat.HEADER_SIZE + packetSize);
+                rateBitsPerSecond = rateController.getRate();
+                burstSize = rateController.getBurstSize();
+            }
+            int totalPackets = packetSource.getTotalPackets();
+            Log.info("File mapped as " + totalPackets + " packets.");
+            progress = new ProgressMeter("RBUDP", file.getName(), totalPackets, listener);
+            tcpOut.writeInt(totalPackets); // Send total packets count to receiver for error check
+            tcpOut.writeLong(packetSource.getFileSize()); // Lets the receiver preallocate the file
+            tcpOut.writeLong(packetSource.getFingerprint()); // Lets the receiver match a partial copy
+            bundlePackets = Math.max(1, Math.min(bundlePackets, DatagramFormat.maxBundlePackets(packetSize)));
+            tcpOut.writeInt(bundlePackets);  // Lets the receiver size its buffers for bundles
             tcpOut.flush();
+
+            // Receiver answers with its UDP ports once it is listening
+            int portCount = tcpIn.readInt();
+            if (portCount < 1 || portCount > 256) {
+                throw new IOException("Receiver offered " + portCount + " UDP ports");
+            }
+            int[] ports = new int[portCount];
+            for (int i = 0; i < portCount; i++) {
+                ports[i] = tcpIn.readInt();
+            }
+
+            // Then with whatever it kept from an interrupted attempt, which is skipped
+            PacketBitmap alreadyReceived = new PacketBitmap(totalPackets);
+            ControlProtocol.readResume(tcpIn, alreadyReceived);
+            int delivered = alreadyReceived.cardinality();
+            digest = new FileDigest(totalPackets);
+            if (delivered > 0) {
+                Log.info("Resuming: receiver already holds " + delivered + " of " + totalPackets + " packets");
+                progress.update(delivered);
+                digestSkipped(alreadyReceived);
+            }
+            openStreams(ports);
             
-            // Process packets in bursts
-            for (int burstStart = 0; burstStart < allPacketSeqs.size(); burstStart += BURST_SIZE) {
-                // Determine the end index of this burst
-                int burstEnd = Math.min(burstStart + BURST_SIZE, allPacketSeqs.size());
-                
-                // Get the sequence numbers for this burst
-                List<Integer> burstSeqs = allPacketSeqs.subList(burstStart, burstEnd);
-                Set<Integer> remainingPackets = new HashSet<>(burstSeqs);
-                
-                System.out.println("Processing burst " + (burstStart/BURST_SIZE + 1) + " with " + burstSeqs.size() + " packets");
-                
-                // Continue until all packets in this burst are confirmed received
-                // Limit retries to prevent infinite loop
-                int retryCount = 0;
-                while (!remainingPackets.isEmpty() && retryCount < 16) { 
-                    sendBurst(remainingPackets);
-                    sendSeqNumbers(remainingPackets);
-                    List<Integer> missingPackets = getMissingPackets();
-                    
-                    // Update remaining packets to only those that were missed
-                    remainingPackets = new HashSet<>(missingPackets);
-                    if (!missingPackets.isEmpty()) {
-                        System.out.println("Retransmitting " + missingPackets.size() + " lost packets...");
-                        retryCount++;
-                    } else {
-                        break;
+            // Process packets in pipelined bursts
+            ArrayDeque<Burst> inFlight = new ArrayDeque<>();
+            Map<Integer, Integer> retries = new HashMap<>();
+            int[] retransmits = new int[0];
+            int nextSeq = alreadyReceived.nextClearBit(0, totalPackets);
+            int nextBurstId = 0;
+            while (nextSeq < totalPackets || retransmits.length > 0 || !inFlight.isEmpty()) {
+                int freshLimit = nextSeq < totalPackets ? freshLimit() : 0;
+                boolean haveWork = freshLimit > 0 || retransmits.length > 0;
+                if (haveWork && inFlight.size() < pipelineDepth) {
+                    // Lost packets from earlier bursts ride along with the next new ones, of
+                    // which there are fewer while the receiver's window is short of room
+                    int resend = Math.min(retransmits.length, burstSize);
+                    int[] seqs = Arrays.copyOf(retransmits, burstSize);
+                    int count = resend;
+                    while (count < burstSize && count - resend < freshLimit && nextSeq < totalPackets) {
+                        seqs[count++] = nextSeq;
+                        nextSeq = alreadyReceived.nextClearBit(nextSeq + 1, totalPackets);
+                    }
+                    int fresh = count - resend;
+                    creditProbed |= fresh > 0 && receiverCredit == 0;
+                    receiverCredit = Math.max(0, receiverCredit - fresh);
+                    seqs = count < burstSize ? Arrays.copyOf(seqs, count) : seqs;
+                    retransmits = Arrays.copyOfRange(retransmits, resend, retransmits.length);
+                    metrics.addRetransmissions(resend);
+
+                    Burst burst = new Burst(nextBurstId++, seqs);
+                    Log.debug("Processing burst " + burst.id + " with " + fresh + " new and " + resend + " retransmitted packets");
+                    burst.blastNanos = sendBurst(burst.id, seqs);
+                    burst.seqListSentAt = System.nanoTime();
+                    sendSeqNumbers(burst.id, seqs);
+                    inFlight.add(burst);
+                } else {
+                    // Window is full (or nothing left to send): wait for the oldest burst
+                    Burst burst = inFlight.remove();
+                    long waitStart = System.nanoTime();
+                    int[] missingPackets = getMissingPackets(burst.id);
+                    long nackAt = System.nanoTime();
+                    metrics.addPhase(TransferMetrics.Phase.CONTROL_WAIT, nackAt - waitStart);
+                    metrics.recordRound(burst.seqs.length, missingPackets.length, nackAt - burst.seqListSentAt);
+                    if (rateController != null) {
+                        adaptRate(burst, missingPackets.length, nackAt - burst.seqListSentAt);
                     }
+                    if (adaptiveFec) {
+                        adaptFec(burst.seqs.length, missingPackets.length);
+                    }
+                    if (missingPackets.length > 0) {
+                        Log.debug("Retransmitting " + missingPackets.length + " lost packets...");
+                        retransmits = queueRetransmits(retransmits, missingPackets, retries);
+                    }
+                    delivered += burst.seqs.length - missingPackets.length;
+                    progress.update(delivered);
+                    Log.debug("Burst " + burst.id + " complete");
                 }
-                System.out.println("Burst " + (burstStart/BURST_SIZE + 1) + " complete");
             }
-            System.out.println("File transfer complete from sender side.");
-
-            // Send empty list to let receiver know we done
-            tcpOut.writeObject(new ArrayList<Integer>());
-            tcpOut.flush();
+            Log.info("File transfer complete from sender side.");
+            Log.info("Achieved blast rate: " + formatRate(blastBytes, blastNanos) + " over " + streams.length
+                    + " stream(s) (target " + (rateBitsPerSecond == 0 ? "unlimited" : formatRate(rateBitsPerSecond / 8, 1_000_000_000L)) + ")");
+            long blastAllocated = 0;
+            long blastPackets = 0;
+            for (SendStream stream : streams) {
+                blastAllocated += stream.getAllocatedBytes();
+                blastPackets += stream.getPacketsSent();
+            }
+            Log.info("Blast allocation: " + AllocationMeter.perPacket(blastAllocated, blastPackets));
 
-            // Close resources
-            udpSocket.close();
-            tcpOut.close();
-            tcpIn.close();
-            tcpSocket.close();
+            // Let receiver know we are done, and hear whether the file it holds matches ours
+            ControlProtocol.writeDone(tcpOut, digest.getValue());
+            ControlProtocol.Frame result = ControlProtocol.readFrame(tcpIn);
+            if (result.type != ControlProtocol.RESULT) {
+                throw new IOException("Expected the receiver's result, got type " + result.type);
+            }
 
-        } catch (Exception e) {
-            System.out.println("Current port or IP unavaible, please try again");
-            System.exit(0);
+            metrics.finish();
+            Log.info("[Metrics] " + metrics.getJson());
+            TransferStats stats = new TransferStats(file.getName(), 'U', packetSource.getFileSize(), totalPackets,
+                    blastPackets, abandonedPackets, System.nanoTime() - transferStart, metrics);
+            if (abandonedPackets > 0 || result.status == ControlProtocol.INCOMPLETE) {
+                throw new IncompleteTransferException(abandonedPackets + " packets were still lost after "
+                        + MAX_RETRIES + " retries", stats);
+            }
+            checkDigest(result);
+            listener.onComplete(stats);
+            return stats;
+        } catch (IOException e) {
+            listener.onError(file.getName(), e);
+            throw e;
+        } finally {
+            closeUDP();
         }
     }
 
     /**
-     * Reads the file into memory and divides it into packets.
-     * Each packet is assigned a unique sequence number.
+     * Closes whatever the RBUDP transfer managed to open, in reverse order.
      */
-    private void readFile() {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[packetSize];
-            int seqNum = 0;
+    private void closeUDP() {
+        if (metrics != null) metrics.finish();
+        try {
+            if (streams != null) closeStreams();
+            if (packetSource != null) packetSource.close();
+            if (tcpSocket != null) tcpSocket.close();
+        } catch (IOException e) {
+            Log.warn("Could not close the RBUDP transfer cleanly: " + e.getMessage());
+        }
+    }
 
-            while (true) {
-                int bytesRead = fis.read(buffer);
-                if (bytesRead == -1) {
-                    break;
+    /**
+     * Opens one stream per configured flow, each connected to every receiver port
+     * and paced at an equal share of the blast rate.
+     * 
+     * @param ports The receiver's UDP reader ports
+     * @throws IOException If a stream cannot be opened
+     */
+    private void openStreams(int[] ports) throws IOException {
+        streams = new SendStream[streamCount];
+        for (int i = 0; i < streamCount; i++) {
+            PacketTransport[] transports = new PacketTransport[ports.length];
+            for (int p = 0; p < ports.length; p++) {
+                transports[p] = new UdpTransport(receiverIP, ports[p]);
+                if (impairment != null) {
+                    transports[p] = impairment.wrap(transports[p]);
                 }
-
-                //We make a copy because we dont want our data overwritten
-                byte[] data = Arrays.copyOf(buffer, bytesRead);
-                packets.put(seqNum, data);
-                seqNum++;
-                System.out.println("[Sender] Read packet SeqNum: " + seqNum + " (Size: " + bytesRead + " bytes)");
             }
-            System.out.println("File read and split into " + packets.size() + " packets.");
-            
+            streams[i] = new SendStream(packetSource, transports, rateBitsPerSecond / streamCount, metrics, digest);
+            streams[i].setFecGroup(fecGroup);
+            if (bundlePackets > 1) {
+                streams[i].setBundlePackets(bundlePackets);
+            }
+        }
+        if (compression) {
+            compressor = new PacketCompressor(Runtime.getRuntime().availableProcessors() / 2);
+            for (SendStream stream : streams) {
+                stream.setCompressor(compressor);
+            }
+        }
+        if (streamCount > 1) {
+            streamPool = Executors.newFixedThreadPool(streamCount, r -> {
+                Thread thread = new Thread(r, "rbudp-stream");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        Log.info("Blasting over " + streamCount + " stream(s) to " + ports.length + " receiver port(s)");
+    }
 
+    /**
+     * Measures the path MTU with the receiver and sizes packets so that
+     * no datagram, parity included when FEC may be used, is fragmented.
+     * Keeps the configured packet size if no probe gets through.
+     * 
+     * @throws IOException If the control connection fails
+     */
+    private void probePacketSize() throws IOException {
+        tcpOut.writeChar('P');
+        tcpOut.flush();
+        int mtu = PathMtu.probe(tcpIn, tcpOut, receiverIP);
+        if (mtu > 0) {
+            int overhead = fecGroup > 0 || adaptiveFec ? XorParity.MAX_OVERHEAD : DatagramFormat.HEADER_SIZE;
+            packetSize = PathMtu.packetSizeFor(mtu, receiverIP, overhead);
+        }
+        Log.info("Packet size set to " + packetSize + " bytes");
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } 
+    /**
+     * Works out how many new packets the next burst may carry. A NACK's
+     * credit has to cover every burst sent before the next one arrives, so
+     * each burst gets its share of it. With no credit left, one probe packet
+     * per round keeps the transfer going and brings back a fresh credit.
+     *
+     * @return The most new packets for the burst, possibly 0
+     */
+    private int freshLimit() {
+        if (receiverCredit == 0) {
+            return creditProbed ? 0 : 1;
+        }
+        return (int) ((receiverCredit + (long) pipelineDepth - 1) / pipelineDepth);
+    }
+
+    /**
+     * Adds the packets the receiver kept from an earlier attempt to the
+     * digest. They are not blasted, so this is the one place the sender
+     * reads packets only to checksum them.
+     * 
+     * @param alreadyReceived The packets the receiver holds
+     * @throws IOException If the file cannot be read
+     */
+    private void digestSkipped(PacketBitmap alreadyReceived) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer payload = ByteBuffer.allocateDirect(packetSize);
+        int size = alreadyReceived.size();
+        for (int seq = alreadyReceived.nextSetBit(0, size); seq < size; seq = alreadyReceived.nextSetBit(seq + 1, size)) {
+            payload.clear();
+            packetSource.copyPacket(seq, payload);
+            payload.flip();
+            digest.add(seq, DatagramFormat.checksum(crc, seq, payload));
+        }
+    }
+
+    /**
+     * Compares the receiver's digest of the file with the sender's.
+     * 
+     * @param result The receiver's RESULT frame
+     * @throws IOException If the receiver reports that its copy differs
+     */
+    private void checkDigest(ControlProtocol.Frame result) throws IOException {
+        if (result.status != ControlProtocol.OK || result.digest != digest.getValue()) {
+            throw new IOException(String.format("File digest mismatch: sent %016x, receiver has %016x",
+                    digest.getValue(), result.digest));
+        }
+        Log.info(String.format("File digest %016x confirmed by the receiver", result.digest));
+    }
+
+    private void closeStreams() throws IOException {
+        if (streamPool != null) {
+            streamPool.shutdown();
+        }
+        for (SendStream stream : streams) {
+            if (stream != null) stream.close();
+        }
+        if (compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+        if (impairment != null) {
+            Log.info("[Impairment] " + impairment);
+        }
     }
 
     /**
      * Sends a burst of packets over UDP.
+     * With several streams the burst is split into stripes that are blasted
+     * in parallel; the end-of-burst markers only go out once every stripe is
+     * done, so the receiver can NACK straight away without racing a slow stream.
      * 
-     * @param packetSeqs The set of packet sequence numbers to send
+     * @param burstId The id of the burst
+     * @param packetSeqs The packet sequence numbers to send
+     * @return How long the blast took in nanoseconds
      * @throws IOException If an I/O error occurs during sending
      */
-    private void sendBurst(Set<Integer> packetSeqs) throws IOException {
-        InetAddress receiverAddress = InetAddress.getByName(receiverIP);
-        
+    private long sendBurst(int burstId, int[] packetSeqs) throws IOException {
+        long burstStart = System.nanoTime();
+        long burstBytes = streams.length == 1 ? streams[0].blast(burstId, packetSeqs) : blastStripes(burstId, packetSeqs);
+        streams[0].sendMarkers(burstId, MARKER_COPIES);
+
+        long burstNanos = System.nanoTime() - burstStart;
+        blastBytes += burstBytes;
+        blastNanos += burstNanos;
+        Log.debug("Burst of " + packetSeqs.length + " packets sent at " + formatRate(burstBytes, burstNanos) + ".");
+        return burstNanos;
+    }
+
+    /**
+     * Splits a burst by seq % streams.length and blasts every stripe on its own thread.
+     * 
+     * @param burstId The id of the burst
+     * @param packetSeqs The packet sequence numbers to send
+     * @return The number of bytes put on the wire by all streams
+     * @throws IOException If any stream fails to send
+     */
+    private long blastStripes(int burstId, int[] packetSeqs) throws IOException {
+        int[] counts = new int[streams.length];
+        for (int seq : packetSeqs) {
+            counts[seq % streams.length]++;
+        }
+        int[][] stripes = new int[streams.length][];
+        for (int i = 0; i < streams.length; i++) {
+            stripes[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
         for (int seq : packetSeqs) {
-            byte[] data = packets.get(seq);
-            System.out.println("[Sender] Sending packet SeqNum: " + seq);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeInt(seq);
-            dos.write(data);
-            byte[] packetData = baos.toByteArray();
-            DatagramPacket packet = new DatagramPacket(packetData, packetData.length, receiverAddress, UDP_PORT);
-            udpSocket.send(packet);
-            System.out.println("[DEBUG] UDP packet sent: size=" + packetData.length + 
-                         " to=" + receiverAddress + ":" + UDP_PORT);
+            int stripe = seq % streams.length;
+            stripes[stripe][counts[stripe]++] = seq;
+        }
+
+        List<Future<Long>> results = new ArrayList<>(streams.length);
+        for (int i = 0; i < streams.length; i++) {
+            SendStream stream = streams[i];
+            int[] stripe = stripes[i];
+            results.add(streamPool.submit(() -> stream.blast(burstId, stripe)));
         }
-        System.out.println("Burst of " + packetSeqs.size() + " packets sent.");
+
+        long bytes = 0;
+        try {
+            for (Future<Long> result : results) {
+                bytes += result.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Stream failed while blasting", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while blasting", e);
+        }
+        return bytes;
     }
 
     /**
-     * Sends the sequence numbers of a set of packets over TCP.
+     * Adds newly reported losses to the retransmission queue, dropping any
+     * packet that has already been retried MAX_RETRIES times.
      * 
-     * @param packetSeqs The set of packet sequence numbers to send
+     * @param queued The packets already waiting for retransmission, ascending
+     * @param missingPackets The packets the receiver just reported missing
+     * @param retries The number of retransmissions so far per packet
+     * @return The new retransmission queue in ascending order
      */
-    private void sendSeqNumbers(Set<Integer> packetSeqs) {
+    private int[] queueRetransmits(int[] queued, int[] missingPackets, Map<Integer, Integer> retries) {
+        int[] merged = Arrays.copyOf(queued, queued.length + missingPackets.length);
+        int count = queued.length;
+        for (int seq : missingPackets) {
+            int attempts = retries.merge(seq, 1, Integer::sum);
+            if (attempts > MAX_RETRIES) {
+                Log.warn("Giving up on packet SeqNum " + seq + " after " + MAX_RETRIES + " retries");
+                abandonedPackets++;
+                continue;
+            }
+            merged[count++] = seq;
+        }
+        merged = Arrays.copyOf(merged, count);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Feeds one NACK round into the rate controller and applies its new
+     * rate and burst size.
+     * 
+     * @param burst The burst whose NACK just arrived
+     * @param lost The number of packets reported missing
+     * @param rttNanos The time between sending the sequence list and getting the NACK
+     */
+    private void adaptRate(Burst burst, int lost, long rttNanos) {
+        rateController.onRound(burst.seqs.length, lost, burst.blastNanos, rttNanos);
+        rateBitsPerSecond = rateController.getRate();
+        for (SendStream stream : streams) {
+            stream.setRate(rateBitsPerSecond / streams.length);
+        }
+        burstSize = rateController.getBurstSize();
+        Log.debug(String.format("Loss %.1f%%, RTT %.1f ms -> rate %s, burst %d packets",
+                rateController.getLastLoss() * 100, rateController.getSmoothedRtt() / 1e6,
+                formatRate(rateController.getRate() / 8, 1_000_000_000L), burstSize));
+    }
+
+    /**
+     * Picks the FEC group size for the next bursts from the loss FEC could
+     * not repair in the last round.
+     * 
+     * @param packets The number of packets in the burst
+     * @param lost The number of them still missing after FEC
+     */
+    private void adaptFec(int packets, int lost) {
+        int previous = fecGroup;
+        if (lost > 0) {
+            cleanRounds = 0;
+            fecGroup = fecGroup == 0
+                    ? XorParity.groupSizeFor((double) lost / packets)
+                    : Math.max(XorParity.MIN_GROUP, fecGroup / 2);
+        } else if (fecGroup > 0 && ++cleanRounds >= FEC_CLEAN_ROUNDS) {
+            cleanRounds = 0;
+            fecGroup = fecGroup >= XorParity.MAX_GROUP ? 0 : Math.min(XorParity.MAX_GROUP, fecGroup * 2);
+        }
+        if (fecGroup != previous) {
+            for (SendStream stream : streams) {
+                stream.setFecGroup(fecGroup);
+            }
+            Log.debug("FEC group size " + previous + " -> " + fecGroup);
+        }
+    }
+
+    private static String formatRate(long bytes, long nanos) {
+        double mbps = nanos > 0 ? bytes * 8e3 / nanos : 0;
+        return String.format("%.2f Mbit/s", mbps);
+    }
+
+    /**
+     * Sends the sequence numbers of a burst over TCP.
+     * 
+     * @param burstId The id of the burst
+     * @param packetSeqs The packet sequence numbers to send, in ascending order
+     */
+    private void sendSeqNumbers(int burstId, int[] packetSeqs) {
         try {
-            tcpOut.writeObject(new ArrayList<>(packetSeqs));
-            tcpOut.flush();
-            System.out.println("Sequence numbers sent over TCP.");
+            ControlProtocol.writeSeqs(tcpOut, ControlProtocol.SEQ_LIST, burstId, packetSeqs);
+            Log.trace("Sequence numbers sent over TCP.");
         } catch (IOException e) {
-            e.printStackTrace();
+            // The NACK read that follows fails on the same connection and ends the transfer
+            Log.warn("Could not send the sequence list of burst " + burstId + ": " + e.getMessage());
         }
     }
 
     /**
-     * Gets the list of missing packets from the receiver.
+     * Gets the list of missing packets of a burst from the receiver.
+     * NACKs come back in the order the sequence lists were sent.
      * 
-     * @return A list of sequence numbers of missing packets
-          * @throws ClassNotFoundException 
-          */
-    private List<Integer> getMissingPackets() throws ClassNotFoundException {
-        try {
-            @SuppressWarnings("unchecked")
-            List<Integer> missingPackets = (List<Integer>) tcpIn.readObject();
-            if (missingPackets.isEmpty()) {
-                System.out.println("No missing packets reported.");
-            } else {
-                System.out.println("Received list of " + missingPackets.size() + " missing packets.");
+     * @param burstId The id of the oldest burst still in flight
+     * @return The sequence numbers of missing packets in ascending order
+     * @throws IOException If the reply is not the NACK for that burst
+     */
+    private int[] getMissingPackets(int burstId) throws IOException {
+        ControlProtocol.Frame frame = ControlProtocol.readFrame(tcpIn);
+        if (frame.type != ControlProtocol.NACK || frame.burstId != burstId) {
+            throw new IOException("Expected the NACK for burst " + burstId + " but got type " + frame.type
+                    + " for burst " + frame.burstId);
+        }
+        int[] missingPackets = frame.seqs;
+        receiverCredit = frame.credit;
+        creditProbed = false;
+        if (missingPackets.length == 0) {
+            Log.trace("No missing packets reported.");
+        } else {
+            Log.trace("Received list of " + missingPackets.length + " missing packets.");
+        }
+        return missingPackets;
+    }
+
+    /**
+     * Hands the file to the kernel with transferTo, so its bytes go from
+     * the page cache to the socket without passing through the JVM. The
+     * digest is taken over a mapping of each chunk just before it is sent,
+     * which reads the same cached pages.
+     */
+    private long sendZeroCopyTCP(SocketChannel channel, long fileSize) throws IOException {
+        long position = 0;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (position < fileSize) {
+                long chunk = Math.min(ZERO_COPY_CHUNK, fileSize - position);
+                long readStart = System.nanoTime();
+                digest.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, position, chunk));
+                long writeStart = System.nanoTime();
+                for (long sent = 0; sent < chunk; ) {
+                    long count = fileChannel.transferTo(position + sent, chunk - sent, channel);
+                    if (count <= 0) {
+                        throw new IOException("File shrank to " + (position + sent) + " bytes while sending");
+                    }
+                    sent += count;
+                }
+                metrics.addPhase(TransferMetrics.Phase.READ, writeStart - readStart);
+                metrics.addPhase(TransferMetrics.Phase.BLAST, System.nanoTime() - writeStart);
+                position += chunk;
+                progress.update(position);
+                Log.debug("TCP transfer: " + (position / (1024 * 1024)) + " MB sent");
             }
-            return missingPackets;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return new ArrayList<>();
         }
+        return position;
+    }
+
+    /**
+     * Sends the file as chunks of [raw length][stored length][bytes], where
+     * a stored length below the raw one means the chunk is deflated. The
+     * stream is compressed inline: TCP's own flow control already paces the
+     * sender, so there is no blast rate for a worker pool to protect.
+     */
+    private long sendCompressedTCP(DataOutputStream out) throws IOException {
+        byte[] buffer = new byte[PacketCompressor.CHUNK_SIZE];
+        byte[] compressed = new byte[PacketCompressor.CHUNK_SIZE];
+        Deflater deflater = PacketCompressor.newDeflater();
+        long totalSent = 0;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int bytesRead;
+            while ((bytesRead = fis.readNBytes(buffer, 0, buffer.length)) > 0) {
+                long compressStart = System.nanoTime();
+                digest.update(buffer, 0, bytesRead);
+                int length = PacketCompressor.deflateChunk(deflater, buffer, bytesRead, compressed);
+                long writeStart = System.nanoTime();
+                metrics.addPhase(TransferMetrics.Phase.COMPRESS, writeStart - compressStart);
+                out.writeInt(bytesRead);
+                if (length > 0) {
+                    out.writeInt(length);
+                    out.write(compressed, 0, length);
+                    metrics.addCompressed(bytesRead - length);
+                } else {
+                    out.writeInt(bytesRead);
+                    out.write(buffer, 0, bytesRead);
+                }
+                metrics.addPhase(TransferMetrics.Phase.BLAST, System.nanoTime() - writeStart);
+                totalSent += bytesRead;
+                progress.update(totalSent);
+            }
+        } finally {
+            deflater.end();
+        }
+        return totalSent;
     }
 
     /**
      * Implementation of TCP file transfer for comparison with RBUDP.
+     * Unless compression is on, the file goes from the page cache to the
+     * socket with transferTo, and the socket send buffer is sized up front
+     * so the window is not what limits a fast link.
      * 
-     * @param file The file to be sent
+     * @return What the transfer achieved
+     * @throws IOException If the receiver cannot be reached or the connection breaks
      */
-    public void sendFileTCP() {
-        try {
-            Socket socket = new Socket(receiverIP, TCP_PORT);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream()); // Added input stream
+    public TransferStats sendFileTCP() throws IOException {
+        if (file.isDirectory()) {
+            IOException error = new IOException("Directories can only be sent over RBUDP");
+            listener.onError(file.getName(), error);
+            throw error;
+        }
+        long transferStart = System.nanoTime();
+        try (SocketChannel channel = SocketChannel.open()) {
+            // Set before connecting, so the window scale covers the whole buffer
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, tcpBufferSize);
+            channel.connect(new InetSocketAddress(receiverIP, TCP_PORT));
+            Log.debug("TCP send buffer: " + channel.getOption(StandardSocketOptions.SO_SNDBUF) + " bytes");
+            Socket socket = channel.socket();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
             out.writeUTF(file.getName());
             out.flush();
@@ -231,41 +845,42 @@ public class Sender {
             out.writeChar('T');
             out.flush();
             
-            // Send file size first
-            out.writeLong(file.length());
+            // Send file size first, then whether chunks may be compressed
+            long fileSize = file.length();
+            out.writeLong(fileSize);
+            out.writeBoolean(compression);
             out.flush();
+            progress = new ProgressMeter("TCP", file.getName(), fileSize, listener);
+            metrics = new TransferMetrics("sender", file.getName(), fileSize);
+            metrics.register();
+            digest = FileDigest.forStream(fileSize);
             
-            // Send file data
-            FileInputStream fis = new FileInputStream(file);
-            byte[] buffer = new byte[packetSize];
-    
-            int bytesRead;
-            long totalSent = 0;
-            
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                totalSent += bytesRead;
-                
-                if (totalSent % (1024 * 1024) == 0) { // Every 1 MB
-                    System.out.println("TCP transfer: " + (totalSent / (1024 * 1024)) + " MB sent");
-                }
-            }
+            // Send file data, digesting it on the way; compressed chunks need the bytes in hand
+            long totalSent = compression ? sendCompressedTCP(out) : sendZeroCopyTCP(channel, fileSize);
             out.flush();
 
-            System.out.println("\nTCP file transfer complete. Total sent: " + totalSent + " bytes");
-    
-            // **Wait for final acknowledgment from receiver**
-            //String confirmation = in.readUTF(); // Added this line
-            //System.out.println("[Sender] Received confirmation from receiver: " + confirmation);
-    
-            // Close resources
-            fis.close();
-            out.close();
-            in.close(); // Close the new input stream
-            socket.close();
-    
-        } catch (Exception e) {
-            e.printStackTrace();
+            Log.info("TCP file transfer complete. Total sent: " + totalSent + " bytes");
+
+            // Wait for the receiver to confirm it holds the same file
+            digest.finish();
+            ControlProtocol.writeDone(out, digest.getValue());
+            ControlProtocol.Frame result = ControlProtocol.readFrame(in);
+            if (result.type != ControlProtocol.RESULT) {
+                throw new IOException("Expected the receiver's result, got type " + result.type);
+            }
+            checkDigest(result);
+
+            metrics.finish();
+            Log.info("[Metrics] " + metrics.getJson());
+            TransferStats stats = new TransferStats(file.getName(), 'T', totalSent, 0, 0, 0,
+                    System.nanoTime() - transferStart, metrics);
+            listener.onComplete(stats);
+            return stats;
+        } catch (IOException e) {
+            listener.onError(file.getName(), e);
+            throw e;
+        } finally {
+            if (metrics != null) metrics.finish();
         }
     }
     
@@ -0,0 +1,79 @@
+//Programmatic entry points for sending and receiving files
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Small embeddable API over Sender and Receiver, free of any GUI dependency.
+ * A send runs on its own thread and completes its future with the transfer's
+ * statistics; progress reaches the listener set in the options.
+ */
+public final class Transfer {
+
+    private Transfer() {
+    }
+
+    /**
+     * Starts sending a file to a receiver.
+     *
+     * @param file The file to send, or a directory to send all its files in one session
+     * @param host The receiver's host name or IP address
+     * @param options How to send it
+     * @return A future completed with the transfer's statistics, or exceptionally if it fails
+     */
+    public static CompletableFuture<TransferStats> send(Path file, String host, TransferOptions options) {
+        Sender sender = new Sender(host, file.toFile(), options.getPacketSize(), options.getRateMbps());
+        sender.setAdaptiveRate(options.isAdaptiveRate());
+        sender.setPipelineDepth(options.getPipelineDepth());
+        sender.setStreamCount(options.getStreamCount());
+        if (options.getBurstSize() > 0) {
+            sender.setBurstSize(options.getBurstSize());
+        }
+        sender.setFecGroup(options.getFecGroup());
+        sender.setAdaptiveFec(options.isAdaptiveFec());
+        sender.setCompression(options.isCompression());
+        sender.setBundlePackets(options.getBundlePackets());
+        if (options.getTcpBufferSize() > 0) {
+            sender.setTcpBufferSize(options.getTcpBufferSize());
+        }
+        sender.setImpairment(options.getImpairment());
+        sender.setListener(options.getListener());
+
+        CompletableFuture<TransferStats> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                result.complete(options.getProtocol() == 'T' ? sender.sendFileTCP() : sender.sendFileUDP());
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }, "rbudp-send-" + file.getFileName());
+        thread.start();
+        return result;
+    }
+
+    /**
+     * Starts a receiver service that saves incoming files into a directory.
+     * Both protocols are accepted; the sender picks one per transfer.
+     *
+     * @param directory The directory to save received files in
+     * @param options Reader count, session cap, TCP buffer size and the listener told about every transfer
+     * @return The running receiver; close() it to stop accepting transfers
+     */
+    public static Receiver receive(File directory, TransferOptions options) {
+        Receiver receiver = new Receiver(directory.getName(), 0, options.getListener());
+        receiver.setReceiveDirectory(directory);
+        if (options.getReaderCount() > 0) {
+            receiver.setReaderCount(options.getReaderCount());
+        }
+        if (options.getMaxSessions() > 0) {
+            receiver.setMaxSessions(options.getMaxSessions());
+        }
+        if (options.getTcpBufferSize() > 0) {
+            receiver.setTcpBufferSize(options.getTcpBufferSize());
+        }
+        Thread thread = new Thread(receiver, "rbudp-receiver");
+        thread.start();
+        return receiver;
+    }
+}
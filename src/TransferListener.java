@@ -0,0 +1,36 @@
+//Callbacks through which transfers report progress and results
+/**
+ * Receives progress and completion events from a Sender or a ReceiveSession.
+ * Callbacks run on the transfer's own threads, so implementations must be
+ * quick and hand anything slow (such as GUI updates) off to another thread.
+ * Every method has an empty default, so a listener only overrides what it needs.
+ */
+public interface TransferListener {
+
+    /**
+     * Called as a transfer progresses, at most about ten times a second
+     * however fast packets arrive, and always once the transfer reaches 100%.
+     *
+     * @param fileName The name of the file being transferred
+     * @param percent How much of the file is done, 0 to 100
+     */
+    default void onProgress(String fileName, int percent) {
+    }
+
+    /**
+     * Called once when a transfer has finished.
+     *
+     * @param stats What the transfer achieved
+     */
+    default void onComplete(TransferStats stats) {
+    }
+
+    /**
+     * Called once when a transfer fails.
+     *
+     * @param fileName The name of the file being transferred
+     * @param error What went wrong
+     */
+    default void onError(String fileName, Exception error) {
+    }
+}
@@ -0,0 +1,452 @@
+//Structured metrics collected by one side of one transfer
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, histograms and phase timers for a single transfer.
+ * Counters are LongAdders and histograms are lock-free, so the packet loops
+ * of several threads can update them without contention. When the JVM runs
+ * with -Drbudp.jmx=true (or with a JMX remote agent), the metrics of every
+ * running transfer are registered as an MBean under rbudp:type=Transfer. When
+ * a transfer finishes they can be written out as one line of JSON.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    /**
+     * Where a transfer's time goes. Phases are summed over all threads, so with
+     * several streams or readers they can add up to more than the elapsed time.
+     */
+    public enum Phase {
+        READ,           // Sender copying payloads out of the file mapping
+        COMPRESS,       // Sender compressing payloads on the worker pool
+        BLAST,          // Sender pushing datagrams onto the sockets, pacing included
+        CONTROL_WAIT,   // Blocked on the TCP control channel
+        RECEIVE_WAIT,   // Receiver waiting for a burst's datagrams to arrive
+        WRITE           // Receiver handling datagrams and writing payloads to the file
+    }
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    // Starting the platform MBean server takes a few hundred milliseconds, so it
+    // is opt-in, and MBeans are (un)registered off the transfer's own threads
+    private static final boolean JMX_ENABLED = Boolean.getBoolean("rbudp.jmx")
+            || System.getProperty("com.sun.management.jmxremote") != null;
+    private static final ExecutorService JMX = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "rbudp-jmx");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int id = NEXT_ID.getAndIncrement();
+    private final String side;
+    private final String fileName;
+    private final long fileBytes;
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos = 0;
+    private final long dropsAtStart = udpReceiveDrops();
+    private volatile long socketDrops = -1;
+    private ObjectName objectName;
+
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final LongAdder parityDatagrams = new LongAdder();
+    private final LongAdder recoveredPackets = new LongAdder();
+    private final LongAdder compressedPackets = new LongAdder();
+    private final LongAdder compressionSaved = new LongAdder();
+    private final LongAdder lostPackets = new LongAdder();
+    private final LongAdder rounds = new LongAdder();
+    private volatile double lastRoundLoss = 0;
+    private final Histogram roundLossPermille = new Histogram();
+    private final Histogram nackRttNanos = new Histogram();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    /**
+     * Starts collecting metrics for a transfer.
+     *
+     * @param side "sender" or "receiver"
+     * @param fileName The name of the file being transferred
+     * @param fileBytes The size of the file
+     */
+    public TransferMetrics(String side, String fileName, long fileBytes) {
+        this.side = side;
+        this.fileName = fileName;
+        this.fileBytes = fileBytes;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    public void addPhase(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    /**
+     * Counts data datagrams sent or received.
+     *
+     * @param count The number of datagrams
+     * @param bytes Their total size, headers included
+     */
+    public void addDatagrams(long count, long bytes) {
+        datagrams.add(count);
+        wireBytes.add(bytes);
+    }
+
+    public void addRetransmissions(int count) {
+        retransmissions.add(count);
+    }
+
+    public void addDuplicate() {
+        duplicates.increment();
+    }
+
+    public void addInvalid() {
+        invalid.increment();
+    }
+
+    public void addCorrupt() {
+        corrupt.increment();
+    }
+
+    /**
+     * Counts a forward error correction datagram sent or received.
+     *
+     * @param bytes Its size, headers included
+     */
+    public void addParity(int bytes) {
+        parityDatagrams.increment();
+        wireBytes.add(bytes);
+    }
+
+    /**
+     * Counts a packet sent or received compressed.
+     *
+     * @param savedBytes How much smaller its datagram is than the raw one
+     */
+    public void addCompressed(int savedBytes) {
+        compressedPackets.increment();
+        compressionSaved.add(savedBytes);
+    }
+
+    public void addRecovered() {
+        recoveredPackets.increment();
+    }
+
+    /**
+     * Records the outcome of one sequence list / NACK round.
+     *
+     * @param packets The number of packets in the burst
+     * @param lost The number of them reported missing
+     * @param rttNanos The NACK round trip, or a negative value if this side cannot measure it
+     */
+    public void recordRound(int packets, int lost, long rttNanos) {
+        rounds.increment();
+        lostPackets.add(lost);
+        if (packets > 0) {
+            lastRoundLoss = (double) lost / packets;
+            roundLossPermille.record(lost * 1000L / packets);
+        }
+        if (rttNanos >= 0) {
+            nackRttNanos.record(rttNanos);
+        }
+    }
+
+    /**
+     * Makes the metrics visible over JMX until finish() is called, if JMX is
+     * enabled. Registration happens in the background and never delays the transfer.
+     */
+    public void register() {
+        if (JMX_ENABLED) {
+            JMX.execute(this::registerNow);
+        }
+    }
+
+    private synchronized void registerNow() {
+        if (endNanos != 0) {
+            return;     // Finished before it got registered
+        }
+        try {
+            objectName = new ObjectName("rbudp:type=Transfer,side=" + side + ",id=" + id
+                    + ",file=" + ObjectName.quote(fileName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            Log.warn("Could not register transfer metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the clock, takes the socket drop count and removes the MBean.
+     */
+    public void finish() {
+        if (endNanos != 0) {
+            return;
+        }
+        endNanos = System.nanoTime();
+        long dropsNow = udpReceiveDrops();
+        socketDrops = dropsAtStart < 0 || dropsNow < 0 ? -1 : dropsNow - dropsAtStart;
+        if (JMX_ENABLED) {
+            JMX.execute(this::unregisterNow);
+        }
+    }
+
+    private synchronized void unregisterNow() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                Log.warn("Could not unregister transfer metrics: " + e.getMessage());
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getSide() {
+        return side;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public long getFileBytes() {
+        return fileBytes;
+    }
+
+    public long getElapsedNanos() {
+        return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return getElapsedNanos() / 1_000_000;
+    }
+
+    @Override
+    public double getGoodputMbps() {
+        long elapsed = getElapsedNanos();
+        return elapsed > 0 ? fileBytes * 8e3 / elapsed : 0;
+    }
+
+    /**
+     * Returns the rate datagrams went over the wire while blasting on the
+     * sender, or while the transfer ran on the receiver.
+     */
+    @Override
+    public double getSendRateMbps() {
+        long nanos = phaseNanos[Phase.READ.ordinal()].sum() + phaseNanos[Phase.BLAST.ordinal()].sum();
+        if (nanos == 0) {
+            nanos = getElapsedNanos();
+        }
+        return nanos > 0 ? wireBytes.sum() * 8e3 / nanos : 0;
+    }
+
+    @Override
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getParityDatagrams() {
+        return parityDatagrams.sum();
+    }
+
+    @Override
+    public long getRecoveredPackets() {
+        return recoveredPackets.sum();
+    }
+
+    @Override
+    public long getCompressedPackets() {
+        return compressedPackets.sum();
+    }
+
+    @Override
+    public long getCorruptDatagrams() {
+        return corrupt.sum();
+    }
+
+    @Override
+    public long getRounds() {
+        return rounds.sum();
+    }
+
+    @Override
+    public double getLastRoundLoss() {
+        return lastRoundLoss;
+    }
+
+    @Override
+    public double getNackRttP50Millis() {
+        return nackRttNanos.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getNackRttP99Millis() {
+        return nackRttNanos.getPercentile(99) / 1e6;
+    }
+
+    /**
+     * Returns the UDP datagrams the host dropped for lack of socket buffer
+     * space during the transfer, counted host-wide, or -1 if unknown.
+     */
+    @Override
+    public long getSocketDrops() {
+        return socketDrops;
+    }
+
+    @Override
+    public long getReadMillis() {
+        return phaseMillis(Phase.READ);
+    }
+
+    @Override
+    public long getCompressMillis() {
+        return phaseMillis(Phase.COMPRESS);
+    }
+
+    @Override
+    public long getBlastMillis() {
+        return phaseMillis(Phase.BLAST);
+    }
+
+    @Override
+    public long getControlWaitMillis() {
+        return phaseMillis(Phase.CONTROL_WAIT);
+    }
+
+    @Override
+    public long getReceiveWaitMillis() {
+        return phaseMillis(Phase.RECEIVE_WAIT);
+    }
+
+    @Override
+    public long getWriteMillis() {
+        return phaseMillis(Phase.WRITE);
+    }
+
+    private long phaseMillis(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1_000_000;
+    }
+
+    /**
+     * Renders every metric as a single line of JSON.
+     *
+     * @return The JSON object
+     */
+    @Override
+    public String getJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"side\":\"").append(side).append('"');
+        json.append(",\"file\":\"").append(escape(fileName)).append('"');
+        json.append(",\"fileBytes\":").append(fileBytes);
+        json.append(",\"elapsedMs\":").append(getElapsedMillis());
+        field(json, "goodputMbps", getGoodputMbps());
+        field(json, "sendRateMbps", getSendRateMbps());
+        json.append(",\"wireBytes\":").append(wireBytes.sum());
+        json.append(",\"datagrams\":").append(datagrams.sum());
+        json.append(",\"retransmissions\":").append(retransmissions.sum());
+        json.append(",\"duplicates\":").append(duplicates.sum());
+        json.append(",\"invalid\":").append(invalid.sum());
+        json.append(",\"corrupt\":").append(corrupt.sum());
+        json.append(",\"parityDatagrams\":").append(parityDatagrams.sum());
+        json.append(",\"recoveredPackets\":").append(recoveredPackets.sum());
+        json.append(",\"compressedPackets\":").append(compressedPackets.sum());
+        json.append(",\"compressionSavedBytes\":").append(compressionSaved.sum());
+        json.append(",\"socketDrops\":").append(socketDrops);
+        json.append(",\"rounds\":").append(rounds.sum());
+        json.append(",\"lostPackets\":").append(lostPackets.sum());
+        json.append(",\"roundLoss\":{\"count\":").append(roundLossPermille.getCount());
+        field(json, "mean", roundLossPermille.getMean() / 1000);
+        field(json, "p50", roundLossPermille.getPercentile(50) / 1000.0);
+        field(json, "p99", roundLossPermille.getPercentile(99) / 1000.0);
+        field(json, "max", roundLossPermille.getMax() / 1000.0);
+        json.append('}');
+        json.append(",\"nackRttMs\":{\"count\":").append(nackRttNanos.getCount());
+        field(json, "mean", nackRttNanos.getMean() / 1e6);
+        field(json, "p50", nackRttNanos.getPercentile(50) / 1e6);
+        field(json, "p90", nackRttNanos.getPercentile(90) / 1e6);
+        field(json, "p99", nackRttNanos.getPercentile(99) / 1e6);
+        field(json, "max", nackRttNanos.getMax() / 1e6);
+        json.append('}');
+        json.append(",\"phaseMs\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(phase.name().toLowerCase()).append("\":").append(phaseMillis(phase));
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    // Three decimals, written without String.format so the first summary costs no formatter setup
+    private static void field(StringBuilder json, String name, double value) {
+        json.append(",\"").append(name).append("\":").append(Math.round(value * 1000) / 1000.0);
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Reads the host's count of UDP datagrams dropped because a socket's
+     * receive buffer was full. Only Linux exposes it, in /proc/net/snmp.
+     *
+     * @return The count so far, or -1 if it cannot be read
+     */
+    private static long udpReceiveDrops() {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get("/proc/net/snmp"));
+            for (int i = 0; i + 1 < lines.size(); i++) {
+                if (lines.get(i).startsWith("Udp:") && lines.get(i + 1).startsWith("Udp:")) {
+                    String[] names = lines.get(i).split("\\s+");
+                    String[] values = lines.get(i + 1).split("\\s+");
+                    for (int j = 1; j < names.length && j < values.length; j++) {
+                        if (names[j].equals("RcvbufErrors")) {
+                            return Long.parseLong(values[j]);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, or a format we do not know
+        }
+        return -1;
+    }
+}
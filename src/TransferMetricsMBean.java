@@ -0,0 +1,56 @@
+//JMX view of a running transfer's metrics
+/**
+ * Management interface of TransferMetrics, so a running transfer can be
+ * watched with jconsole or any other JMX client.
+ */
+public interface TransferMetricsMBean {
+    String getSide();
+
+    String getFileName();
+
+    long getFileBytes();
+
+    long getElapsedMillis();
+
+    double getGoodputMbps();
+
+    double getSendRateMbps();
+
+    long getDatagrams();
+
+    long getRetransmissions();
+
+    long getDuplicates();
+
+    long getParityDatagrams();
+
+    long getRecoveredPackets();
+
+    long getCorruptDatagrams();
+
+    long getCompressedPackets();
+
+    long getRounds();
+
+    double getLastRoundLoss();
+
+    double getNackRttP50Millis();
+
+    double getNackRttP99Millis();
+
+    long getSocketDrops();
+
+    long getReadMillis();
+
+    long getCompressMillis();
+
+    long getBlastMillis();
+
+    long getControlWaitMillis();
+
+    long getReceiveWaitMillis();
+
+    long getWriteMillis();
+
+    String getJson();
+}
@@ -0,0 +1,219 @@
+//Settings for transfers started through the Transfer API
+/**
+ * Settings shared by the Transfer API and the command line.
+ * Every setter returns the options so they can be chained, and the defaults
+ * match what the GUI uses: RBUDP, 1000-byte packets, unlimited rate.
+ */
+public class TransferOptions {
+    private char protocol = 'U';
+    private int packetSize = 1000;
+    private int rateMbps = 0;
+    private boolean adaptiveRate = false;
+    private int pipelineDepth = 1;
+    private int streamCount = 1;
+    private int burstSize = 0;         // 0 leaves the sender's default
+    private NetworkImpairment impairment = null;  // null sends over the plain sockets
+    private int fecGroup = 0;          // Data packets per parity datagram, 0 for no FEC
+    private boolean adaptiveFec = false;
+    private boolean compression = false;
+    private int readerCount = 0;       // 0 leaves the receiver's default
+    private int maxSessions = 0;       // 0 leaves the receiver's default
+    private int bundlePackets = 1;     // Packets per datagram
+    private int tcpBufferSize = 0;     // 0 leaves the default socket buffer of TCP transfers
+    private TransferListener listener = new TransferListener() {
+    };
+
+    /**
+     * @param protocol 'U' for RBUDP or 'T' for TCP
+     * @return These options
+     */
+    public TransferOptions setProtocol(char protocol) {
+        if (protocol != 'U' && protocol != 'T') {
+            throw new IllegalArgumentException("Unknown protocol: " + protocol);
+        }
+        this.protocol = protocol;
+        return this;
+    }
+
+    /**
+     * @param packetSize The number of payload bytes per packet, or 0 to fit packets to the path MTU
+     * @return These options
+     */
+    public TransferOptions setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+        return this;
+    }
+
+    public TransferOptions setRateMbps(int rateMbps) {
+        this.rateMbps = rateMbps;
+        return this;
+    }
+
+    public TransferOptions setAdaptiveRate(boolean adaptiveRate) {
+        this.adaptiveRate = adaptiveRate;
+        return this;
+    }
+
+    public TransferOptions setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    public TransferOptions setStreamCount(int streamCount) {
+        this.streamCount = streamCount;
+        return this;
+    }
+
+    public TransferOptions setBurstSize(int burstSize) {
+        this.burstSize = burstSize;
+        return this;
+    }
+
+    /**
+     * Sends one XOR parity datagram per group of data packets, so single
+     * losses in a group are repaired without a retransmission round.
+     *
+     * @param fecGroup The number of data packets per parity datagram, 0 for no FEC
+     * @return These options
+     */
+    public TransferOptions setFecGroup(int fecGroup) {
+        this.fecGroup = fecGroup;
+        return this;
+    }
+
+    /**
+     * Lets the observed loss decide how much parity to send, if any.
+     *
+     * @param adaptiveFec True to adapt FEC during the transfer
+     * @return These options
+     */
+    public TransferOptions setAdaptiveFec(boolean adaptiveFec) {
+        this.adaptiveFec = adaptiveFec;
+        return this;
+    }
+
+    /**
+     * Compresses packets, or TCP chunks, that shrink enough to be worth it.
+     *
+     * @param compression True to compress on the fly
+     * @return These options
+     */
+    public TransferOptions setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Makes the sender send through an emulated link, for measuring loss
+     * recovery and rate control over a clean link such as loopback.
+     *
+     * @param impairment The link to send through, or null for none
+     * @return These options
+     */
+    public TransferOptions setImpairment(NetworkImpairment impairment) {
+        this.impairment = impairment;
+        return this;
+    }
+
+    public TransferOptions setReaderCount(int readerCount) {
+        this.readerCount = readerCount;
+        return this;
+    }
+
+    public TransferOptions setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+        return this;
+    }
+
+    /**
+     * Packs several packets into each datagram to save system calls.
+     *
+     * @param bundlePackets The most packets per datagram, 1 for none
+     * @return These options
+     */
+    public TransferOptions setBundlePackets(int bundlePackets) {
+        this.bundlePackets = bundlePackets;
+        return this;
+    }
+
+    /**
+     * Sets SO_SNDBUF of a sending side and SO_RCVBUF of a receiving side,
+     * which bound how much a TCP transfer keeps in flight.
+     *
+     * @param tcpBufferSize The socket buffer size in bytes, 0 for the default
+     * @return These options
+     */
+    public TransferOptions setTcpBufferSize(int tcpBufferSize) {
+        this.tcpBufferSize = tcpBufferSize;
+        return this;
+    }
+
+    public TransferOptions setListener(TransferListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public char getProtocol() {
+        return protocol;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public int getRateMbps() {
+        return rateMbps;
+    }
+
+    public boolean isAdaptiveRate() {
+        return adaptiveRate;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public int getStreamCount() {
+        return streamCount;
+    }
+
+    public int getBurstSize() {
+        return burstSize;
+    }
+
+    public int getFecGroup() {
+        return fecGroup;
+    }
+
+    public boolean isAdaptiveFec() {
+        return adaptiveFec;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public NetworkImpairment getImpairment() {
+        return impairment;
+    }
+
+    public int getReaderCount() {
+        return readerCount;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public int getBundlePackets() {
+        return bundlePackets;
+    }
+
+    public int getTcpBufferSize() {
+        return tcpBufferSize;
+    }
+
+    public TransferListener getListener() {
+        return listener;
+    }
+}
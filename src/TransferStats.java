@@ -0,0 +1,93 @@
+//Summary of one finished file transfer
+/**
+ * Immutable summary of a file transfer, as seen by one side of it.
+ * On the sending side datagrams counts every data datagram blasted,
+ * retransmissions included; on the receiving side it counts every data
+ * datagram taken off the sockets, duplicates included.
+ */
+public final class TransferStats {
+    private final String fileName;
+    private final char protocol;
+    private final long bytes;
+    private final int packets;
+    private final long datagrams;
+    private final int missingPackets;
+    private final long elapsedNanos;
+    private final TransferMetrics metrics;
+
+    /**
+     * Creates the summary.
+     *
+     * @param fileName The name of the transferred file
+     * @param protocol 'U' for RBUDP, 'M' for a directory over RBUDP or 'T' for TCP
+     * @param bytes The size of the file
+     * @param packets The number of packets the file was split into, 0 for TCP
+     * @param datagrams The number of data datagrams sent or received
+     * @param missingPackets The number of packets that never made it across
+     * @param elapsedNanos How long the transfer took
+     * @param metrics The detailed metrics collected during the transfer
+     */
+    public TransferStats(String fileName, char protocol, long bytes, int packets, long datagrams,
+            int missingPackets, long elapsedNanos, TransferMetrics metrics) {
+        this.fileName = fileName;
+        this.protocol = protocol;
+        this.bytes = bytes;
+        this.packets = packets;
+        this.datagrams = datagrams;
+        this.missingPackets = missingPackets;
+        this.elapsedNanos = elapsedNanos;
+        this.metrics = metrics;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public char getProtocol() {
+        return protocol;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getPackets() {
+        return packets;
+    }
+
+    public long getDatagrams() {
+        return datagrams;
+    }
+
+    public int getMissingPackets() {
+        return missingPackets;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isComplete() {
+        return missingPackets == 0;
+    }
+
+    /**
+     * Returns the goodput of the transfer, counting file bytes only.
+     *
+     * @return The throughput in megabits per second
+     */
+    public double getThroughputMbps() {
+        return elapsedNanos > 0 ? bytes * 8e3 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s via %s: %d bytes in %.3f s (%.2f Mbit/s), %d packets, %d datagrams, %d missing",
+                fileName, protocol == 'T' ? "TCP" : "RBUDP", bytes, elapsedNanos / 1e9, getThroughputMbps(),
+                packets, datagrams, missingPackets);
+    }
+}
@@ -0,0 +1,42 @@
+//Sends datagrams over a connected UDP socket
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The real transport: a UDP channel connected to one receiver port.
+ * A connected channel needs no per-send address lookup or allocation.
+ */
+public class UdpTransport implements PacketTransport {
+    private final DatagramChannel channel;
+    private final InetSocketAddress address;
+
+    /**
+     * Opens a channel connected to the receiver port.
+     *
+     * @param host The receiver's host name or IP address
+     * @param port The receiver's UDP port
+     * @throws IOException If the channel cannot be opened
+     */
+    public UdpTransport(String host, int port) throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.channel = DatagramChannel.open();
+        channel.connect(address);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException {
+        channel.write(datagram);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
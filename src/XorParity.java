@@ -0,0 +1,67 @@
+//XOR parity over groups of packets, for forward error correction
+import java.nio.ByteBuffer;
+
+/**
+ * Forward error correction with one XOR parity datagram per group of
+ * packets. The parity payload is the XOR of the group's payloads, padded
+ * with zeroes to the packet size, so a receiver missing exactly one packet
+ * of a group can rebuild it from the others without a retransmission round.
+ * <p>
+ * A parity datagram is [PARITY][crc][burstId][count][seq * count][parity payload].
+ * Members are listed explicitly since retransmitted packets are not
+ * contiguous.
+ */
+public final class XorParity {
+    public static final int MIN_GROUP = 4;
+    public static final int MAX_GROUP = 32;
+    public static final int BURST_OFFSET = 8;
+    public static final int COUNT_OFFSET = 12;
+    public static final int HEADER_SIZE = 16;   // [PARITY][crc][burstId][count]
+    public static final int MAX_OVERHEAD = HEADER_SIZE + 4 * MAX_GROUP;   // Bytes in front of the parity payload
+
+    private XorParity() {
+    }
+
+    /**
+     * XORs bytes of one buffer into another, eight at a time. Positions and
+     * limits of both buffers are left alone.
+     *
+     * @param target The buffer to XOR into
+     * @param targetOffset Where in the target to start
+     * @param source The buffer to XOR from
+     * @param sourceOffset Where in the source to start
+     * @param length The number of bytes
+     */
+    public static void xor(ByteBuffer target, int targetOffset, ByteBuffer source, int sourceOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            target.putLong(targetOffset + i, target.getLong(targetOffset + i) ^ source.getLong(sourceOffset + i));
+        }
+        for (; i < length; i++) {
+            target.put(targetOffset + i, (byte) (target.get(targetOffset + i) ^ source.get(sourceOffset + i)));
+        }
+    }
+
+    /**
+     * Picks a group size for the given packet loss. XOR parity only helps a
+     * group that lost exactly one packet, so groups are sized to lose about
+     * half a packet each: 1% loss gives groups of 32, 5% groups of 10.
+     *
+     * @param loss The share of packets lost, above 0
+     * @return The number of data packets per parity datagram
+     */
+    public static int groupSizeFor(double loss) {
+        return (int) Math.max(MIN_GROUP, Math.min(MAX_GROUP, Math.round(0.5 / loss)));
+    }
+
+    /**
+     * Returns the size of the largest datagram either side may see, parity
+     * datagrams included.
+     *
+     * @param packetSize The number of payload bytes per packet
+     * @return The largest datagram in bytes
+     */
+    public static int maxDatagramSize(int packetSize) {
+        return MAX_OVERHEAD + packetSize;
+    }
+}